@@ -0,0 +1,57 @@
+/* execbench.c
+ *	Run a program over and over, one copy at a time or several at once,
+ *	to measure how long exec() takes.
+ *
+ *	execbench prog N [copies]	run prog N times, with up to copies
+ *					(default 1) running at a time
+ *
+ *	Only the first exec() of a program reads its headers and text from
+ *	the disk; the copies running at once share their text.
+ *	Compare the ticks Nachos prints when it halts.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define MAXCOPIES 8
+
+int
+main(int argc, char **argv)
+{
+    int n, copies, pids[MAXCOPIES], i, c, status, failed;
+    char *args[1];
+
+    if (argc < 3) {
+	printf("usage: execbench prog count [copies]\n");
+	return 1;
+    }
+
+    n = atoi(argv[2]);
+    copies = (argc > 3) ? atoi(argv[3]) : 1;
+    if (copies < 1 || copies > MAXCOPIES) {
+	printf("copies must be from 1 to %d\n", MAXCOPIES);
+	return 1;
+    }
+
+    args[0] = argv[1];
+    failed = 0;
+
+    for (i = 0; i < n; i += copies) {
+	for (c = 0; c < copies && i + c < n; c++) {
+	    pids[c] = exec(argv[1], 1, args);
+	    if (pids[c] == -1) {
+		printf("exec %s failed\n", argv[1]);
+		return 1;
+	    }
+	}
+
+	for (c = 0; c < copies && i + c < n; c++) {
+	    if (join(pids[c], &status) != 1)
+		failed++;
+	}
+    }
+
+    printf("%d runs of %s, %d failed\n", n, argv[1], failed);
+    return failed;
+}
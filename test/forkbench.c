@@ -0,0 +1,82 @@
+/* forkbench.c
+ *	Start worker processes with fork() and check that each one sees, and
+ *	can change, its own copy of the parent's memory.
+ *
+ *	forkbench [workers]	fork the workers (default 4); each adds up
+ *				its own slice of a table the parent filled
+ *				in, overwrites the table, and exits with its
+ *				sum, which the parent checks
+ *
+ *	The table is several pages long, so the workers share most of the
+ *	parent's pages until they write to them.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define MAXWORKERS 16
+#define TABLESIZE 2048
+
+int table[TABLESIZE];
+
+int
+main(int argc, char **argv)
+{
+    int workers, pids[MAXWORKERS], i, w, slice, sum, status, failed;
+
+    workers = (argc > 1) ? atoi(argv[1]) : 4;
+    if (workers < 1 || workers > MAXWORKERS) {
+	printf("usage: forkbench [1-%d]\n", MAXWORKERS);
+	return 1;
+    }
+
+    for (i = 0; i < TABLESIZE; i++)
+	table[i] = i;
+
+    slice = TABLESIZE / workers;
+
+    for (w = 0; w < workers; w++) {
+	pids[w] = fork();
+	if (pids[w] == -1) {
+	    printf("fork %d failed\n", w);
+	    return 1;
+	}
+
+	if (pids[w] == 0) {
+	    sum = 0;
+	    for (i = w*slice; i < (w+1)*slice; i++)
+		sum += table[i];
+
+	    /* the parent and the other workers must not see this */
+	    for (i = 0; i < TABLESIZE; i++)
+		table[i] = -1;
+
+	    exit(sum);
+	}
+    }
+
+    failed = 0;
+    for (w = 0; w < workers; w++) {
+	sum = 0;
+	for (i = w*slice; i < (w+1)*slice; i++)
+	    sum += i;
+
+	if (join(pids[w], &status) != 1 || status != sum) {
+	    printf("worker %d returned %d, expected %d\n", w, status, sum);
+	    failed = 1;
+	}
+    }
+
+    for (i = 0; i < TABLESIZE; i++) {
+	if (table[i] != i) {
+	    printf("a worker changed the parent's table\n");
+	    return 1;
+	}
+    }
+
+    if (!failed)
+	printf("%d workers ok\n", workers);
+
+    return failed;
+}
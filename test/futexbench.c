@@ -0,0 +1,100 @@
+/* futexbench.c
+ *	Measure the cost of user-level locking.
+ *
+ *	futexbench lock N	lock and unlock a mutex N times
+ *	futexbench syscall N	call futex_wake() N times on a word nobody
+ *				waits on, as a trap-per-operation lock would
+ *	futexbench wait N	call futex_wait() N times with a stale value,
+ *				which must return at once
+ *	futexbench contend N	fork, and have both processes lock a mutex
+ *				in a shared memory segment N times each, so
+ *				the lock is really contended
+ *
+ *	Compare the user and kernel ticks Nachos prints when it halts. An
+ *	uncontended lock should add no kernel ticks at all.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define SHMKEY 0x66757478
+#define SHMADDR ((int *) 0x00100000)
+
+int mutex;
+int counter;
+
+/* lock a mutex shared with a child n times each, and return the count */
+int
+contend(int n)
+{
+    int *shared, i, pid, status;
+
+    if (shmat(shmget(SHMKEY, 8), (char *) SHMADDR) == -1) {
+	printf("Unable to attach shared memory\n");
+	return -1;
+    }
+
+    /* the segment starts out zero, so the mutex is unlocked */
+    shared = SHMADDR;
+
+    pid = fork();
+    assert(pid != -1);
+
+    for (i = 0; i < n; i++) {
+	mutex_lock(&shared[0]);
+	shared[1]++;
+	mutex_unlock(&shared[0]);
+    }
+
+    if (pid == 0)
+	exit(0);
+
+    assert(join(pid, &status) == 1);
+    return shared[1];
+}
+
+int
+main(int argc, char **argv)
+{
+    int i, n;
+
+    if (argc != 3) {
+	printf("usage: futexbench lock|syscall|wait|contend count\n");
+	return 1;
+    }
+
+    n = atoi(argv[2]);
+
+    if (strcmp(argv[1], "lock") == 0) {
+	for (i = 0; i < n; i++) {
+	    mutex_lock(&mutex);
+	    counter++;
+	    mutex_unlock(&mutex);
+	}
+	assert(mutex == 0 && counter == n);
+    }
+    else if (strcmp(argv[1], "syscall") == 0) {
+	for (i = 0; i < n; i++) {
+	    futex_wake(&mutex, 1);
+	    counter++;
+	}
+    }
+    else if (strcmp(argv[1], "wait") == 0) {
+	for (i = 0; i < n; i++) {
+	    assert(futex_wait(&mutex, 1) == -1);
+	    counter++;
+	}
+    }
+    else if (strcmp(argv[1], "contend") == 0) {
+	counter = contend(n);
+	assert(counter == 2*n);
+    }
+    else {
+	printf("unknown mode %s\n", argv[1]);
+	return 1;
+    }
+
+    printf("%s: %d operations\n", argv[1], counter);
+    return 0;
+}
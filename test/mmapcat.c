@@ -0,0 +1,61 @@
+/* mmapcat.c
+ *	Print a file through a memory map instead of read().
+ *
+ *	mmapcat file		write the mapped file to the console with a
+ *				single write()
+ *	mmapcat -u file		convert the file to upper case in place by
+ *				changing the map, then print it the same way
+ *
+ *	The map is placed well above the program, so it cannot overlap it.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define MAPADDR ((char *) 0x00100000)
+
+int
+main(int argc, char **argv)
+{
+    char *name;
+    int fd, length, i, upper;
+
+    if (argc == 2) {
+	upper = 0;
+	name = argv[1];
+    }
+    else if (argc == 3 && strcmp(argv[1], "-u") == 0) {
+	upper = 1;
+	name = argv[2];
+    }
+    else {
+	printf("usage: mmapcat [-u] file\n");
+	return 1;
+    }
+
+    fd = open(name);
+    if (fd == -1) {
+	printf("Unable to open %s\n", name);
+	return 1;
+    }
+
+    length = mmap(fd, MAPADDR);
+    close(fd);
+    if (length == -1) {
+	printf("Unable to map %s\n", name);
+	return 1;
+    }
+
+    if (upper) {
+	for (i = 0; i < length; i++) {
+	    if (MAPADDR[i] >= 'a' && MAPADDR[i] <= 'z')
+		MAPADDR[i] += 'A' - 'a';
+	}
+    }
+
+    write(1, MAPADDR, length);
+
+    assert(munmap(MAPADDR) == 0);
+    return 0;
+}
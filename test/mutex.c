@@ -0,0 +1,40 @@
+/* mutex.c
+ *	A user-level mutex built on compare_and_swap() and the futex
+ *	syscalls. The word is 0 when the mutex is free, 1 when it is held
+ *	and nobody waits, and 2 when it is held and threads may be waiting.
+ *	Locking and unlocking a free mutex never enter the kernel.
+ */
+
+#include "stdlib.h"
+
+/* Atomically store value in *m and return the old value. */
+static int exchange(int *m, int value) {
+  int old;
+
+  do {
+    old = *m;
+  } while (compare_and_swap(m, old, value) != old);
+
+  return old;
+}
+
+void mutex_lock(int *m) {
+  int c = compare_and_swap(m, 0, 1);
+
+  if (c == 0)
+    return;
+
+  /* mark the mutex as having waiters before sleeping on it */
+  if (c != 2)
+    c = exchange(m, 2);
+
+  while (c != 0) {
+    futex_wait(m, 2);
+    c = exchange(m, 2);
+  }
+}
+
+void mutex_unlock(int *m) {
+  if (exchange(m, 0) == 2)
+    futex_wake(m, 1);
+}
@@ -0,0 +1,109 @@
+/* pipebench.c
+ *	Pass data from one process to another, through a pipe or through a
+ *	temporary file, as a shell pipeline would.
+ *
+ *	pipebench pipe N	a forked child writes N bytes into a pipe, a
+ *				block at a time, and the parent reads them
+ *				until the end of the data
+ *	pipebench file N	the child writes the bytes to a temporary
+ *				file instead, and the parent reads the file
+ *				once the child has exited
+ *
+ *	Compare the ticks Nachos prints when it halts.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define BLOCKSIZE 1024
+#define TEMPFILE "pipebench.tmp"
+
+char block[BLOCKSIZE];
+
+/* write n bytes, a block at a time, each byte holding its position */
+void
+produce(int fd, int n)
+{
+    int i, pos, amount;
+
+    for (pos = 0; pos < n; pos += amount) {
+	amount = (n - pos < BLOCKSIZE) ? n - pos : BLOCKSIZE;
+	for (i = 0; i < amount; i++)
+	    block[i] = (char) (pos + i);
+	assert(write(fd, block, amount) == amount);
+    }
+}
+
+/* read until the end of the data, check it, and return how much there was */
+int
+consume(int fd)
+{
+    int i, pos, amount;
+
+    for (pos = 0; (amount = read(fd, block, BLOCKSIZE)) > 0; pos += amount) {
+	for (i = 0; i < amount; i++)
+	    assert(block[i] == (char) (pos + i));
+    }
+
+    assert(amount == 0);
+    return pos;
+}
+
+int
+main(int argc, char **argv)
+{
+    int n, fds[2], pid, status, fd, total;
+
+    if (argc != 3) {
+	printf("usage: pipebench pipe|file count\n");
+	return 1;
+    }
+
+    n = atoi(argv[2]);
+
+    if (strcmp(argv[1], "pipe") == 0) {
+	assert(pipe(fds) == 0);
+
+	pid = fork();
+	assert(pid != -1);
+
+	if (pid == 0) {
+	    close(fds[0]);
+	    produce(fds[1], n);
+	    exit(0);
+	}
+
+	/* the read end sees the end of the data only once no process has
+	   the write end open */
+	close(fds[1]);
+	total = consume(fds[0]);
+	close(fds[0]);
+	assert(join(pid, &status) == 1);
+    }
+    else if (strcmp(argv[1], "file") == 0) {
+	pid = fork();
+	assert(pid != -1);
+
+	if (pid == 0) {
+	    fd = creat(TEMPFILE);
+	    assert(fd != -1);
+	    produce(fd, n);
+	    exit(0);
+	}
+
+	assert(join(pid, &status) == 1);
+	fd = open(TEMPFILE);
+	assert(fd != -1);
+	total = consume(fd);
+	close(fd);
+	unlink(TEMPFILE);
+    }
+    else {
+	printf("unknown mode %s\n", argv[1]);
+	return 1;
+    }
+
+    printf("%s: %d bytes\n", argv[1], total);
+    return (total == n) ? 0 : 1;
+}
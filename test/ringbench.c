@@ -0,0 +1,175 @@
+/* ringbench.c
+ *	Write and read back several files, either one system call at a time or
+ *	through an I/O ring with all of the files in flight at once.
+ *
+ *	ringbench sync N	create N files, write a block to each, read
+ *				each back and close it, with ordinary calls
+ *	ringbench ring N	do the same through an I/O ring, one batch of
+ *				N requests for each step
+ *
+ *	Compare the ticks Nachos prints when it halts.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define MAXFILES 8
+#define BLOCKSIZE 512
+
+char names[MAXFILES][16];
+char blocks[MAXFILES][BLOCKSIZE];
+int fds[MAXFILES];
+
+struct io_ring ring;
+int ringfd;
+
+void
+fill(int f)
+{
+    int i;
+
+    for (i = 0; i < BLOCKSIZE; i++)
+	blocks[f][i] = (char) (f + i);
+}
+
+void
+check(int f)
+{
+    int i;
+
+    for (i = 0; i < BLOCKSIZE; i++)
+	assert(blocks[f][i] == (char) (f + i));
+}
+
+/* queue one request for each file; user_data is the file's number */
+void
+submit(int opcode, int n)
+{
+    struct io_sqe *sqe;
+    int f;
+
+    for (f = 0; f < n; f++) {
+	sqe = &ring.sq[ring.sq_tail % IORING_ENTRIES];
+	sqe->opcode = opcode;
+	sqe->fd = fds[f];
+	sqe->addr = (opcode == syscallOpen || opcode == syscallCreate) ?
+	    (void *) names[f] : (void *) blocks[f];
+	sqe->len = BLOCKSIZE;
+	sqe->user_data = f;
+	ring.sq_tail++;
+    }
+}
+
+/* wait for n completions, store them in results, and collect them */
+void
+complete(int n, int *results)
+{
+    struct io_cqe *cqe;
+
+    assert(ioring_enter(ringfd, n) >= n);
+
+    while (n-- > 0) {
+	cqe = &ring.cq[ring.cq_head % IORING_ENTRIES];
+	results[cqe->user_data] = cqe->res;
+	ring.cq_head++;
+    }
+}
+
+void
+runsync(int n)
+{
+    int f;
+
+    for (f = 0; f < n; f++) {
+	fds[f] = creat(names[f]);
+	assert(fds[f] != -1);
+	fill(f);
+	assert(write(fds[f], blocks[f], BLOCKSIZE) == BLOCKSIZE);
+	assert(close(fds[f]) == 0);
+    }
+
+    for (f = 0; f < n; f++) {
+	fds[f] = open(names[f]);
+	assert(fds[f] != -1);
+	assert(read(fds[f], blocks[f], BLOCKSIZE) == BLOCKSIZE);
+	check(f);
+	assert(close(fds[f]) == 0);
+    }
+}
+
+void
+runring(int n)
+{
+    int results[MAXFILES], f;
+
+    ringfd = ioring_setup(&ring);
+    assert(ringfd != -1);
+
+    submit(syscallCreate, n);
+    complete(n, fds);
+    for (f = 0; f < n; f++) {
+	assert(fds[f] != -1);
+	fill(f);
+    }
+
+    submit(syscallWrite, n);
+    complete(n, results);
+    for (f = 0; f < n; f++)
+	assert(results[f] == BLOCKSIZE);
+
+    submit(syscallClose, n);
+    complete(n, results);
+
+    submit(syscallOpen, n);
+    complete(n, fds);
+
+    submit(syscallRead, n);
+    complete(n, results);
+    for (f = 0; f < n; f++) {
+	assert(results[f] == BLOCKSIZE);
+	check(f);
+    }
+
+    submit(syscallClose, n);
+    complete(n, results);
+
+    close(ringfd);
+}
+
+int
+main(int argc, char **argv)
+{
+    int n, f;
+
+    if (argc != 3) {
+	printf("usage: ringbench sync|ring count\n");
+	return 1;
+    }
+
+    n = atoi(argv[2]);
+    if (n < 1 || n > MAXFILES) {
+	printf("count must be from 1 to %d\n", MAXFILES);
+	return 1;
+    }
+
+    for (f = 0; f < n; f++) {
+	strcpy(names[f], "ringbench0.tmp");
+	names[f][9] = '0' + f;
+    }
+
+    if (strcmp(argv[1], "sync") == 0)
+	runsync(n);
+    else if (strcmp(argv[1], "ring") == 0)
+	runring(n);
+    else {
+	printf("unknown mode %s\n", argv[1]);
+	return 1;
+    }
+
+    for (f = 0; f < n; f++)
+	unlink(names[f]);
+
+    printf("%s: %d files ok\n", argv[1], n);
+    return 0;
+}
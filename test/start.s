@@ -21,6 +21,14 @@
 	.globl	__start
 	.ent	__start
 __start:
+	move	$8,$4		/* keep argc and argv for main */
+	move	$9,$5
+	la	$4,__cas_begin
+	la	$5,__cas_end
+	addiu	$2,$0,syscallRestartable
+	syscall
+	move	$4,$8
+	move	$5,$9
 	jal	main
 	addu	$4,$2,$0
 	jal	exit	 /* if we return from main, exit(return value) */
@@ -67,3 +75,43 @@ name:				; \
 	SYSCALLSTUB(mmap, syscallMmap)
 	SYSCALLSTUB(connect, syscallConnect)
 	SYSCALLSTUB(accept, syscallAccept)
+	SYSCALLSTUB(futex_wait, syscallFutexWait)
+	SYSCALLSTUB(futex_wake, syscallFutexWake)
+	SYSCALLSTUB(restartable, syscallRestartable)
+	SYSCALLSTUB(readv, syscallReadv)
+	SYSCALLSTUB(writev, syscallWritev)
+	SYSCALLSTUB(munmap, syscallMunmap)
+	SYSCALLSTUB(fork, syscallFork)
+	SYSCALLSTUB(shmget, syscallShmget)
+	SYSCALLSTUB(shmat, syscallShmat)
+	SYSCALLSTUB(shmdt, syscallShmdt)
+	SYSCALLSTUB(pipe, syscallPipe)
+	SYSCALLSTUB(ioring_setup, syscallIORingSetup)
+	SYSCALLSTUB(ioring_enter, syscallIORingEnter)
+
+/* -------------------------------------------------------------
+ * compare_and_swap
+ *	MIPS-I has no atomic instructions, so this is a restartable
+ *	sequence: __start registers __cas_begin..__cas_end with the
+ *	kernel, which moves a thread switched out inside it back to
+ *	__cas_begin. The store is the last instruction in the range,
+ *	so either it runs after an uninterrupted load and compare, or
+ *	the whole sequence runs again.
+ * -------------------------------------------------------------
+ */
+
+	.globl	compare_and_swap
+	.ent	compare_and_swap
+compare_and_swap:
+	.set	noreorder
+__cas_begin:
+	lw	$2,0($4)
+	nop
+	bne	$2,$5,__cas_end
+	nop
+	sw	$6,0($4)
+__cas_end:
+	j	$31
+	nop
+	.set	reorder
+	.end	compare_and_swap
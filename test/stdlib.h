@@ -34,4 +34,7 @@ int strncmp(const char *a, const char *b, int n);
 
 int atoi(const char *s);
 
+void mutex_lock(int *m);
+void mutex_unlock(int *m);
+
 #endif // STDLIB_H
@@ -25,6 +25,19 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFutexWait	13
+#define syscallFutexWake	14
+#define syscallRestartable	15
+#define syscallReadv		16
+#define syscallWritev		17
+#define syscallMunmap		18
+#define syscallFork		19
+#define syscallShmget		20
+#define syscallShmat		21
+#define syscallShmdt		22
+#define syscallPipe		23
+#define syscallIORingSetup	24
+#define syscallIORingEnter	25
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -53,7 +66,7 @@
  */
 void halt();
 
-/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
+/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join(), fork() */
 
 /**
  * Terminate the current process immediately. Any open file descriptors
@@ -109,7 +122,19 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
-/* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
+/**
+ * Create a child process that is a copy of the current process, running the
+ * same program from the same point. The child's memory starts out identical
+ * to its parent's; pages are shared until either process writes to them, so
+ * fork() is cheap even for a large program. The child has its own copy of
+ * every open file descriptor. Maps made with mmap() are not inherited.
+ *
+ * Returns the child's process ID, which can be passed to join(), in the
+ * parent, and 0 in the child. On error, returns -1.
+ */
+int fork();
+
+/* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink, pipe
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
  * disk or to a stream (such as console input, console output, and network
@@ -215,19 +240,49 @@ int close(int fileDescriptor);
 int unlink(char *name);
 
 /**
- * Map the file referenced by fileDescriptor into memory at address. The file
- * may be as large as 0x7FFFFFFF bytes.
- * 
- * To maintain consistency, further calls to read() and write() on this file
- * descriptor will fail (returning -1) until the file descriptor is closed.
+ * Create a pipe, and store the file descriptor of its read end in fds[0] and
+ * that of its write end in fds[1]. Bytes written to the write end are held in
+ * the kernel, up to 4KB of them, until they are read from the read end.
+ *
+ * read() on a pipe waits until it holds data, and returns what is there, up
+ * to count bytes; once every write end is closed and the pipe is empty, it
+ * returns 0. write() waits for room until all count bytes are in the pipe;
+ * once every read end is closed, it returns the number of bytes written so
+ * far, or -1 if there were none. A child created by fork() has its own
+ * descriptors for the same pipes, and a pipe is closed only when every
+ * process has closed its ends.
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int pipe(int *fds);
+
+/**
+ * Map the disk file referenced by fileDescriptor into memory at address,
+ * which must be page-aligned and above the memory the program was loaded
+ * into, and must not overlap another map. The map must end below 64MB.
+ *
+ * Nothing is read until a page of the map is first touched. Pages that are
+ * modified are written back to the file when they are evicted from memory and
+ * when the map is removed; the file never grows. The map is independent of
+ * fileDescriptor, which may be closed at once. Changes made with write() may
+ * not be seen through the map, or changes to the map by read(), until the map
+ * is removed.
  *
- * When the file descriptor is closed, all remaining dirty pages of the map
- * will be flushed to disk and the map will be removed.
+ * Only supported by kernels with demand paging.
  *
  * Returns the length of the file on success, or -1 if an error occurred.
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Remove the map starting at address, writing its modified pages back to the
+ * file. Maps that are still present when a process exits are removed the
+ * same way.
+ *
+ * Returns 0 on success, or -1 if there is no map at address.
+ */
+int munmap(char *address);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
@@ -257,6 +312,187 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* VECTORED I/O SYSCALLS: readv(), writev() */
+
+/**
+ * A buffer in a readv() or writev() call.
+ */
+struct iovec {
+    void *iov_base;	/* the first byte of the buffer */
+    int iov_len;	/* the number of bytes in the buffer */
+};
+
+/**
+ * Like read(), but fill the iovcnt buffers described by iov in order, with a
+ * single system call. Stops early, like read(), if fewer bytes are
+ * available. At most 16 buffers may be given.
+ *
+ * Returns the total number of bytes read, or -1 on error.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/**
+ * Like write(), but write the iovcnt buffers described by iov in order, with
+ * a single system call. If the buffers total at most 4096 bytes they are
+ * written as one request, so a header and body sent to the console are never
+ * separated by another process's output. At most 16 buffers may be given.
+ *
+ * Returns the total number of bytes written, or -1 on error.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int iovcnt);
+
+/* ASYNCHRONOUS I/O SYSCALLS: ioring_setup(), ioring_enter() */
+
+#define IORING_ENTRIES	32
+
+/**
+ * A request in the submission ring. opcode is syscallOpen, syscallCreate,
+ * syscallRead, syscallWrite or syscallClose, and the operation takes the
+ * same arguments as that system call: addr is the file name for open and
+ * creat, and the buffer for read and write. user_data is copied to the
+ * completion, to tell which request it belongs to.
+ */
+struct io_sqe {
+    int opcode;
+    int fd;
+    void *addr;
+    int len;
+    int user_data;
+};
+
+/**
+ * The result of a request in the completion ring. res is what the system
+ * call would have returned.
+ */
+struct io_cqe {
+    int user_data;
+    int res;
+};
+
+/**
+ * A pair of rings shared by a program and the kernel. The counters only
+ * grow; entry n of a ring is at index n % IORING_ENTRIES. The program fills
+ * in sq[sq_tail % IORING_ENTRIES] and then advances sq_tail; the kernel
+ * advances sq_head as it takes requests. The kernel fills in
+ * cq[cq_tail % IORING_ENTRIES] and then advances cq_tail; the program reads
+ * the completions before cq_tail and then advances cq_head.
+ */
+struct io_ring {
+    int sq_head;	/* advanced by the kernel */
+    int sq_tail;	/* advanced by the program */
+    int cq_head;	/* advanced by the program */
+    int cq_tail;	/* advanced by the kernel */
+    struct io_sqe sq[IORING_ENTRIES];
+    struct io_cqe cq[IORING_ENTRIES];
+};
+
+/**
+ * Make ring an empty I/O ring, and return a file descriptor for it. Kernel
+ * threads carry out the requests queued in the ring while the program keeps
+ * running, several at a time, and post their results as they finish.
+ * Requests on different file descriptors may complete in any order; those
+ * on the same descriptor are carried out in the order they were queued. The
+ * program queues requests and collects results without system calls.
+ *
+ * close() on the descriptor waits for the requests being carried out, and
+ * drops the rest. The ring is closed the same way when the process exits,
+ * and is not inherited by fork(). The memory must stay in place while the
+ * ring is open.
+ *
+ * Returns the new file descriptor, or -1 if an error occurred.
+ */
+int ioring_setup(struct io_ring *ring);
+
+/**
+ * Tell the kernel that requests have been queued in the ring fd, or that
+ * completions have been collected, then wait until at least minComplete
+ * completions are waiting, or until no request is left to complete. A
+ * request is only started when the completion ring has room for its result,
+ * so call this after collecting completions if requests may be waiting.
+ *
+ * Returns the number of completions waiting, or -1 if an error occurred.
+ */
+int ioring_enter(int fd, int minComplete);
+
+/* SYNCHRONIZATION SYSCALLS: futex_wait(), futex_wake(), restartable() */
+
+/**
+ * If the word at addr still holds expected, sleep until another thread calls
+ * futex_wake() on the same word. Checking the word and going to sleep happen
+ * atomically with respect to futex_wake(). Processes that share memory wait
+ * on the same word even if it is mapped at different addresses.
+ *
+ * This is the slow path of a user-level lock: take the lock with
+ * compare_and_swap(), and only call futex_wait() when it is held by someone
+ * else. Callers must check the word again after futex_wait() returns.
+ *
+ * addr must be word-aligned. Returns 0 after being woken, or -1 if the word
+ * did not hold expected or addr is invalid.
+ */
+int futex_wait(int *addr, int expected);
+
+/**
+ * Wake up to count threads sleeping in futex_wait() on the word at addr.
+ *
+ * Returns the number of threads woken, or -1 if addr is invalid.
+ */
+int futex_wake(int *addr, int count);
+
+/**
+ * Register the restartable sequence of instructions from begin up to (not
+ * including) end. If a thread is switched out while inside the sequence, the
+ * kernel moves it back to begin, so a sequence ending in a single store
+ * executes atomically. The sequence may be at most 64 bytes long, and
+ * registering a new one replaces the old.
+ *
+ * The startup code registers the sequence used by compare_and_swap(), so user
+ * programs do not need to call this.
+ *
+ * Returns 0 on success, or -1 if the range is invalid.
+ */
+int restartable(void *begin, void *end);
+
+/**
+ * Atomically replace the word at addr with value if it holds expected.
+ * Returns the old value of the word. This does not enter the kernel; it is
+ * provided by the startup code as a restartable sequence.
+ */
+int compare_and_swap(int *addr, int expected, int value);
+
+/* SHARED MEMORY SYSCALLS: shmget(), shmat(), shmdt() */
+
+/**
+ * Return the ID of the shared memory segment named by key, creating it with
+ * room for size bytes, all zero, if there is none. Any process that knows the
+ * key can find the segment; an existing one must be at least size bytes, and
+ * a size of 0 just looks it up. A segment lasts until no process has it
+ * attached and the process that created it has exited. Segments are never
+ * paged out, so together they may only use half of physical memory.
+ *
+ * Returns the segment ID, or -1 if an error occurred.
+ */
+int shmget(int key, int size);
+
+/**
+ * Map the segment shmid into memory at address, which must be page-aligned
+ * and above the memory the program was loaded into, and must not overlap a
+ * map or another segment. Every process that attaches the segment uses the
+ * same memory, so what one writes the others see at once, without any copy.
+ * A child created by fork() has its parent's segments attached at the same
+ * addresses; unlike the rest of its memory, they stay shared.
+ *
+ * Returns the size of the segment in bytes, or -1 if an error occurred.
+ */
+int shmat(int shmid, char *address);
+
+/**
+ * Unmap the segment attached at address. Segments are detached the same way
+ * when a process exits.
+ *
+ * Returns 0 on success, or -1 if no segment is attached at address.
+ */
+int shmdt(char *address);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
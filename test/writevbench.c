@@ -0,0 +1,94 @@
+/* writevbench.c
+ *	Measure the cost of writing records made of several small pieces.
+ *
+ *	writevbench write N	write N records to a file, one write() per
+ *				piece, as printf() does
+ *	writevbench writev N	write the same records with one writev()
+ *				per record
+ *
+ *	Each record is a header, a body and a newline. Both modes read the
+ *	file back with readv() and check it. Compare the kernel ticks
+ *	Nachos prints when it halts.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+#define FILENAME "writevbench.out"
+
+char header[] = "record: ";
+char body[] = "the quick brown fox jumps over the lazy dog";
+char newline[] = "\n";
+
+char rheader[sizeof(header)-1];
+char rbody[sizeof(body)-1];
+char rnewline[1];
+
+int
+main(int argc, char **argv)
+{
+    struct iovec iov[3];
+    int i, n, fd, vectored, recordLength;
+
+    if (argc != 3) {
+	printf("usage: writevbench write|writev count\n");
+	return 1;
+    }
+
+    if (strcmp(argv[1], "write") == 0)
+	vectored = 0;
+    else if (strcmp(argv[1], "writev") == 0)
+	vectored = 1;
+    else {
+	printf("unknown mode %s\n", argv[1]);
+	return 1;
+    }
+
+    n = atoi(argv[2]);
+    recordLength = sizeof(header)-1 + sizeof(body)-1 + 1;
+
+    fd = creat(FILENAME);
+    assert(fd != -1);
+
+    iov[0].iov_base = header;
+    iov[0].iov_len = sizeof(header)-1;
+    iov[1].iov_base = body;
+    iov[1].iov_len = sizeof(body)-1;
+    iov[2].iov_base = newline;
+    iov[2].iov_len = 1;
+
+    for (i = 0; i < n; i++) {
+	if (vectored) {
+	    assert(writev(fd, iov, 3) == recordLength);
+	}
+	else {
+	    assert(write(fd, header, sizeof(header)-1) == sizeof(header)-1);
+	    assert(write(fd, body, sizeof(body)-1) == sizeof(body)-1);
+	    assert(write(fd, newline, 1) == 1);
+	}
+    }
+
+    close(fd);
+
+    fd = open(FILENAME);
+    assert(fd != -1);
+
+    iov[0].iov_base = rheader;
+    iov[1].iov_base = rbody;
+    iov[2].iov_base = rnewline;
+
+    for (i = 0; i < n; i++) {
+	assert(readv(fd, iov, 3) == recordLength);
+	assert(strncmp(rheader, header, sizeof(rheader)) == 0);
+	assert(strncmp(rbody, body, sizeof(rbody)) == 0);
+	assert(rnewline[0] == '\n');
+    }
+    assert(readv(fd, iov, 3) == 0);
+
+    close(fd);
+    unlink(FILENAME);
+
+    printf("%s: %d records\n", argv[1], n);
+    return 0;
+}
@@ -1,42 +1,44 @@
 package nachos.threads;
-import java.util.PriorityQueue;
+
 import nachos.machine.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a hierarchical timing wheel. Level 0 has one
+ * slot per tick of the current block of 64 ticks; each higher level has one
+ * slot per block of the level below, 64 times as long. A thread is filed at
+ * the lowest level whose slot tells its wake time apart from the current
+ * time, and is moved down a level each time the wheel reaches its slot, so
+ * inserting a thread takes constant time and expiring it takes at most one
+ * step per level.
+ *
+ * <p>
+ * The wheel is checked at every timer interrupt, and also every time the
+ * thread system picks a thread to run. Since the idle thread does so
+ * continuously, a sleeping thread on an otherwise idle machine wakes within
+ * one kernel tick of its wake time, instead of at the next timer interrupt.
+ * The timer interrupt is still what preempts running threads, and wakes
+ * sleepers while every thread is busy.
  */
 public class Alarm {
-
-	private class Pair implements Comparable<Pair>{
-		public KThread kthread;
-		public long timeStamp;
-
-		public Pair(KThread kthread, long timeStamp){
-			this.kthread = kthread;
-			this.timeStamp = timeStamp;
-		}
-
-		@Override
-		public int compareTo(Pair that) {
-			if (this.timeStamp < that.timeStamp) return -1;
-        	if (this.timeStamp > that.timeStamp) return 1;
-        	return 0;
-			// return Long.signum(wakeTime - that.wakeTime);
-		}
-	}
-
-	private PriorityQueue<Pair> priorityQueue = new PriorityQueue<Pair>();
-
-	 
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
 	 * alarm's callback.
-	 * 
+	 *
 	 * <p>
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
 	public Alarm() {
+		for (int i = 0; i < numLevels; i++) {
+			for (int j = 0; j < slotsPerLevel; j++)
+				slots[i][j] = new Waiter(null);
+		}
+
+		current = Machine.timer().getTime();
+
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
@@ -46,73 +48,357 @@ public class Alarm {
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks). Wakes every thread
+	 * whose wake time has passed, then causes the current thread to yield,
+	 * forcing a context switch if there is another thread that should be run,
+	 * unless the scheduler decides that the current thread should keep
+	 * running.
 	 */
 	public void timerInterrupt() {
 
-		// Begin interrupt 
+		// Begin interrupt
 		boolean intStatus = Machine.interrupt().disable();
 
-		//KThread.currentThread().yield();
-
-		// Grab top element from queue, but dont remove it.
-		Pair pair = priorityQueue.peek();
+		advance(Machine.timer().getTime());
 
-		// Only work with the queue if its not empty
-		if(!priorityQueue.isEmpty()){
-
-			// Get current time and compare to the top element of the queue.
-			long x = Machine.timer().getTime();
-			if( x >= pair.timeStamp){
-				// Remove top element from queue.
-				priorityQueue.poll();
-
-				// Read up the thread.
-				pair.kthread.ready();
-			}
-		}
+		boolean preempt = ThreadedKernel.scheduler.preemptCurrentThread();
 
 		// End interrupt
 		Machine.interrupt().restore(intStatus);
-		KThread.yield();     
+		if (preempt)
+			KThread.yield();
+	}
+
+	/**
+	 * Wake every thread whose wake time has passed. Called by the thread
+	 * system with interrupts disabled each time it chooses the next thread to
+	 * run. Does nothing unless the earliest pending deadline has been reached.
+	 */
+	public void checkDeadlines() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long time = Machine.timer().getTime();
+		if (time >= nextDeadline)
+			advance(time);
 	}
 
 	/**
 	 * Put the current thread to sleep for at least <i>x</i> ticks, waking it up
 	 * in the timer interrupt handler. The thread must be woken up (placed in
 	 * the scheduler ready set) during the first timer interrupt where
-	 * 
+	 *
 	 * <p>
 	 * <blockquote> (current time) >= (WaitUntil called time)+(x) </blockquote>
-	 * 
+	 *
 	 * @param x the minimum number of clock ticks to wait.
-	 * 
+	 *
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		
-		// Begin interrupt 
-		boolean intStatus = Machine.interrupt().disable();
+		if (x <= 0)
+			return;
 
-		// Grab timestamp
-		long wakeTime = Machine.timer().getTime() + x;
+		// Begin interrupt
+		boolean intStatus = Machine.interrupt().disable();
 
-		// Wrap current thread and timestamp into a pair object and add it to the priotity queue
-		Pair p = new Pair(KThread.currentThread(), wakeTime);
-		priorityQueue.add(p);
+		// File the current thread's waiter under its wake time
+		setTimeout(KThread.currentThread(), Machine.timer().getTime() + x, null);
 		KThread.sleep();
 
 		// End interrupt
 		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Arrange for the specified thread to be woken at <i>wakeTime</i>, unless
+	 * <tt>cancelTimeout()</tt> is called first. The caller must disable
+	 * interrupts and put the thread to sleep. If <i>waitingOn</i> is not
+	 * <tt>null</tt>, its <tt>timedOut()</tt> method is called to let go of the
+	 * thread before it is woken.
+	 *
+	 * @param thread the thread to wake.
+	 * @param wakeTime the earliest time at which to wake it.
+	 * @param waitingOn what the thread is waiting for, if anything.
+	 */
+	void setTimeout(KThread thread, long wakeTime, TimedWait waitingOn) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Waiter waiter = getWaiter(thread);
+		waiter.wakeTime = wakeTime;
+		waiter.waitingOn = waitingOn;
+		insert(waiter);
+	}
+
+	/**
+	 * Take the specified thread out of the wheel, if it is there, so that it
+	 * is not woken when its timeout expires.
+	 *
+	 * @param thread the thread whose timeout to cancel.
+	 */
+	void cancelTimeout(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Waiter waiter = (Waiter) thread.alarmState;
+		if (waiter == null || waiter.level < 0)
+			return;
+
+		waiter.prev.next = waiter.next;
+		waiter.next.prev = waiter.prev;
+
+		Waiter head = slots[waiter.level][waiter.slot];
+		if (head.next == head)
+			occupied[waiter.level] &= ~(1L << waiter.slot);
+
+		waiter.next = waiter.prev = null;
+		waiter.level = -1;
+		waiter.waitingOn = null;
+	}
+
+	/**
+	 * Return a copy of the wake latency histogram. Each time a thread is
+	 * woken, the number of ticks between its wake time and the timer
+	 * interrupt that woke it is counted in one bucket: bucket 0 counts
+	 * latencies of 0, and bucket <i>i</i> counts latencies from
+	 * 2<sup><i>i</i>-1</sup> up to but not including 2<sup><i>i</i></sup>.
+	 * The last bucket also counts every longer latency.
+	 *
+	 * @return the number of wakeups in each latency bucket.
+	 */
+	public long[] getLatencyHistogram() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		long[] histogram = latencyHistogram.clone();
+
+		Machine.interrupt().restore(intStatus);
+		return histogram;
+	}
+
+	/**
+	 * Print the non-empty buckets of the wake latency histogram.
+	 */
+	public void printLatencyHistogram() {
+		long[] histogram = getLatencyHistogram();
+
+		long total = 0;
+		for (int i = 0; i < histogram.length; i++)
+			total += histogram[i];
+
+		System.out.println("Alarm: " + total + " wakeups, max latency "
+				+ maxLatency + " ticks");
+
+		for (int i = 0; i < histogram.length; i++) {
+			if (histogram[i] == 0)
+				continue;
+
+			String range;
+			if (i == 0)
+				range = "0";
+			else if (i == histogram.length - 1)
+				range = (1L << (i - 1)) + "+";
+			else
+				range = (1L << (i - 1)) + "-" + ((1L << i) - 1);
+
+			System.out.println("Alarm: latency " + range + ": " + histogram[i]);
+		}
+	}
+
+	/**
+	 * Return the waiter for the specified thread, allocating it the first time
+	 * the thread sleeps.
+	 */
+	private Waiter getWaiter(KThread thread) {
+		if (thread.alarmState == null)
+			thread.alarmState = new Waiter(thread);
+
+		return (Waiter) thread.alarmState;
+	}
+
+	/**
+	 * File a waiter in the wheel. The level is the index of the highest
+	 * 6-bit digit in which its wake time differs from the current time.
+	 */
+	private void insert(Waiter waiter) {
+		Lib.assertTrue(waiter.level < 0);
+
+		long time = Math.max(waiter.wakeTime, current);
+		long diff = time ^ current;
+		int level = (diff == 0 ? 0
+				: (63 - Long.numberOfLeadingZeros(diff)) / levelBits);
+		int slot = (int) (time >>> (level * levelBits)) & slotMask;
+
+		Waiter head = slots[level][slot];
+		waiter.next = head;
+		waiter.prev = head.prev;
+		head.prev.next = waiter;
+		head.prev = waiter;
 
-		// Old code
-		//while (wakeTime > Machine.timer().getTime())
-		//	KThread.yield();
-		
+		waiter.level = level;
+		waiter.slot = slot;
+		occupied[level] |= 1L << slot;
+
+		nextDeadline = Math.min(nextDeadline, slotStart(level, slot));
+	}
+
+	/**
+	 * Return the first time covered by the specified slot, given the current
+	 * time of the wheel.
+	 */
+	private long slotStart(int level, int slot) {
+		int shift = level * levelBits;
+		long block = (shift + levelBits >= 64 ? 0
+				: current >>> (shift + levelBits) << (shift + levelBits));
+
+		return block | ((long) slot << shift);
+	}
+
+	/**
+	 * Move the wheel forward to the specified time, waking every thread due
+	 * by then. Empty slots are skipped using the occupancy bitmaps, and the
+	 * wheel only stops at slots that hold waiters.
+	 */
+	private void advance(long time) {
+		while (true) {
+			int level = 0;
+			while (level < numLevels && occupied[level] == 0)
+				level++;
+
+			if (level == numLevels) {
+				current = time;
+				nextDeadline = Long.MAX_VALUE;
+				return;
+			}
+
+			// every occupied slot is at or after the current time, so the
+			// lowest set bit of the lowest non-empty level comes first
+			int slot = Long.numberOfTrailingZeros(occupied[level]);
+			long start = slotStart(level, slot);
+
+			if (start > time) {
+				nextDeadline = start;
+				return;
+			}
+
+			current = start;
+
+			Waiter head = slots[level][slot];
+			Waiter waiter = head.next;
+			head.next = head.prev = head;
+			occupied[level] &= ~(1L << slot);
+
+			while (waiter != head) {
+				Waiter next = waiter.next;
+				waiter.next = waiter.prev = null;
+				waiter.level = -1;
+
+				if (level == 0)
+					expire(waiter, time);
+				else
+					insert(waiter);
+
+				waiter = next;
+			}
+		}
+	}
+
+	/**
+	 * Record the latency of a waiter that is due, and wake its thread,
+	 * first taking it off whatever it timed out waiting for.
+	 */
+	private void expire(Waiter waiter, long time) {
+		long latency = time - waiter.wakeTime;
+
+		int bucket = (latency <= 0 ? 0 : Math.min(
+				64 - Long.numberOfLeadingZeros(latency), numLatencyBuckets - 1));
+		latencyHistogram[bucket]++;
+		if (latency > maxLatency)
+			maxLatency = latency;
+
+		if (waiter.waitingOn != null) {
+			waiter.waitingOn.timedOut(waiter.thread);
+			waiter.waitingOn = null;
+		}
+
+		waiter.thread.ready();
+	}
+
+	/**
+	 * Something a thread can wait for with a timeout, such as a condition
+	 * variable or a future. If the timeout expires first, the alarm calls
+	 * <tt>timedOut()</tt>, with interrupts disabled, before waking the
+	 * thread.
+	 */
+	interface TimedWait {
+		/**
+		 * Stop waiting for the specified thread, which ran out of time.
+		 *
+		 * @param thread the thread that timed out.
+		 */
+		void timedOut(KThread thread);
 	}
-/*
+
+	/**
+	 * A thread's entry in the timing wheel. Each thread has at most one,
+	 * allocated the first time it sleeps and reused afterwards. The head of
+	 * each slot's circular list is a waiter with no thread.
+	 *
+	 * <p>
+	 * A cancelled entry is unlinked at once, but <tt>nextDeadline</tt> is left
+	 * alone: it is only a lower bound, and the next check corrects it.
+	 */
+	private static class Waiter {
+		Waiter(KThread thread) {
+			this.thread = thread;
+			next = prev = this;
+		}
+
+		/** The thread that is sleeping. */
+		KThread thread;
+
+		/** The time at which the thread should wake. */
+		long wakeTime;
+
+		/** What the thread is waiting for with a timeout, if anything. */
+		TimedWait waitingOn;
+
+		/** The neighbours of this waiter in its slot. */
+		Waiter next, prev;
+
+		/** The level this waiter is filed in, or -1 if it is not filed. */
+		int level = -1;
+
+		/** The slot this waiter is filed in. */
+		int slot;
+	}
+
+	private static final int levelBits = 6;
+
+	private static final int slotsPerLevel = 1 << levelBits;
+
+	private static final int slotMask = slotsPerLevel - 1;
+
+	/** Enough levels to cover every non-negative <tt>long</tt> time. */
+	private static final int numLevels = (63 + levelBits - 1) / levelBits;
+
+	private static final int numLatencyBuckets = 24;
+
+	/** The time up to which the wheel has been advanced. */
+	private long current;
+
+	/**
+	 * The start of the earliest occupied slot. No thread is due before this
+	 * time.
+	 */
+	private long nextDeadline = Long.MAX_VALUE;
+
+	private Waiter[][] slots = new Waiter[numLevels][slotsPerLevel];
+
+	/** One bit per slot of each level, set if the slot holds any waiters. */
+	private long[] occupied = new long[numLevels];
+
+	private long[] latencyHistogram = new long[numLatencyBuckets];
+
+	private long maxLatency = 0;
+
 	// Test Case
 	public static void selfTest() {
 	    KThread t1 = new KThread(new Runnable() {
@@ -123,7 +409,7 @@ public class Alarm {
 	            ThreadedKernel.alarm.waitUntil(waitTime);
 	            System.out.println("Thread woken up after:" + (Machine.timer().getTime() - time1));
 	            Lib.assertTrue((Machine.timer().getTime() - time1) > waitTime, " thread woke up too early.");
-	            
+
 	        }
 	    });
 	    t1.setName("T1");
@@ -134,7 +420,7 @@ public class Alarm {
 			KThread t2 = new KThread(new Runnable() {
 		        public void run() {
 		            long time1 = Machine.timer().getTime();
-		            
+
 		            int Max = 10000000;
 		            int Min = 0;
 		            int waitTime = Min + (int)(Math.random() * ((Max - Min) + 1));
@@ -147,7 +433,7 @@ public class Alarm {
 		            System.out.println(status +" - Thread woken up after: " + currentTime +  " WaitTime: " + waitTime);
 		            Lib.assertTrue((Machine.timer().getTime() - time1) > waitTime, " thread woke up too early.");
 		            System.out.println("");
-		            
+
 		        }
 	    	});
 		    t2.setName("T1");
@@ -155,6 +441,32 @@ public class Alarm {
 		    t2.join();
 		}
 
+		// Many sleepers at once: every one must wake by the first timer
+		// interrupt after its wake time, not one per interrupt.
+		int numSleepers = 200;
+		final long[] lateness = new long[numSleepers];
+		KThread[] sleepers = new KThread[numSleepers];
+		for (int x = 0; x < numSleepers; x++) {
+			final int id = x;
+			sleepers[x] = new KThread(new Runnable() {
+				public void run() {
+					long waitTime = Lib.random(20000);
+					long wakeTime = Machine.timer().getTime() + waitTime;
+					ThreadedKernel.alarm.waitUntil(waitTime);
+					Lib.assertTrue(Machine.timer().getTime() >= wakeTime, " thread woke up too early.");
+					lateness[id] = Machine.timer().getTime() - wakeTime;
+				}
+			}).setName("sleeper " + x);
+			sleepers[x].fork();
+		}
+		for (int x = 0; x < numSleepers; x++)
+			sleepers[x].join();
+
+		long maxLateness = 0;
+		for (int x = 0; x < numSleepers; x++)
+			maxLateness = Math.max(maxLateness, lateness[x]);
+		System.out.println(numSleepers + " sleepers, max lateness " + maxLateness);
+
+		ThreadedKernel.alarm.printLatencyHistogram();
 	}
-*/
 }
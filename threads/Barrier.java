@@ -0,0 +1,166 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A cyclic barrier, at which a fixed number of threads wait for each other.
+ * Each thread calls <tt>await()</tt>; the last of them to arrive releases
+ * all the others at once, and the barrier is then ready for the next phase.
+ *
+ * <p>
+ * Waiting threads sleep on a single <tt>ThreadQueue</tt>, and a phase does
+ * not allocate.
+ */
+public class Barrier {
+	/**
+	 * Allocate a new barrier.
+	 *
+	 * @param parties the number of threads that must call <tt>await()</tt>
+	 * in each phase.
+	 */
+	public Barrier(int parties) {
+		this(parties, null);
+	}
+
+	/**
+	 * Allocate a new barrier with an action to run at the end of each phase.
+	 *
+	 * @param parties the number of threads that must call <tt>await()</tt>
+	 * in each phase.
+	 * @param action code run by the last thread to arrive, before the others
+	 * are released, or <tt>null</tt>.
+	 */
+	public Barrier(int parties, Runnable action) {
+		Lib.assertTrue(parties > 0);
+
+		this.parties = parties;
+		this.action = action;
+	}
+
+	/**
+	 * Wait until <tt>getParties()</tt> threads, including this one, have
+	 * called <tt>await()</tt> in the current phase.
+	 *
+	 * @return the order in which this thread arrived, from
+	 * <tt>getParties() - 1</tt> for the first to 0 for the last.
+	 */
+	public int await() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int index = parties - 1 - arrived;
+
+		if (++arrived < parties) {
+			waitQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+		else {
+			if (action != null)
+				action.run();
+
+			arrived = 0;
+			phase++;
+
+			KThread thread;
+			while ((thread = waitQueue.nextThread()) != null)
+				thread.ready();
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return index;
+	}
+
+	/**
+	 * Return the number of threads needed in each phase.
+	 *
+	 * @return the number of parties.
+	 */
+	public int getParties() {
+		return parties;
+	}
+
+	/**
+	 * Return the number of phases completed so far.
+	 *
+	 * @return the phase number.
+	 */
+	public long getPhase() {
+		return phase;
+	}
+
+	/**
+	 * Test that this module is working. Threads step through several phases
+	 * of a barrier, and no thread may start a phase before all have finished
+	 * the previous one. A latch and <tt>KThread.joinAll()</tt> then wait for
+	 * the workers, and several threads join the same thread.
+	 */
+	public static void selfTest() {
+		final int numThreads = 5, numPhases = 10;
+		final int[] done = new int[numPhases];
+		final int[] lastIndexes = new int[1];
+		final CountDownLatch finished = new CountDownLatch(numThreads);
+
+		final Barrier barrier = new Barrier(numThreads, new Runnable() {
+			public void run() {
+				lastIndexes[0]++;
+			}
+		});
+
+		KThread[] threads = new KThread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int phase = 0; phase < numPhases; phase++) {
+						if (phase > 0)
+							Lib.assertTrue(done[phase - 1] == numThreads,
+									"thread passed the barrier early");
+						done[phase]++;
+						KThread.yield();
+						barrier.await();
+					}
+					finished.countDown();
+				}
+			}).setName("barrier " + i);
+			threads[i].fork();
+		}
+
+		finished.await();
+		Lib.assertTrue(barrier.getPhase() == numPhases
+				&& lastIndexes[0] == numPhases);
+
+		KThread.joinAll(threads);
+
+		// several joiners, before and after the thread finishes
+		final KThread target = new KThread(new Runnable() {
+			public void run() {
+				ThreadedKernel.alarm.waitUntil(1000);
+			}
+		}).setName("join target");
+		KThread[] joiners = new KThread[3];
+		for (int i = 0; i < joiners.length; i++) {
+			joiners[i] = new KThread(new Runnable() {
+				public void run() {
+					target.join();
+				}
+			}).setName("joiner " + i);
+			joiners[i].fork();
+		}
+		target.fork();
+		KThread.joinAll(joiners);
+		target.join();
+
+		System.out.println("Barrier: " + numThreads + " threads through "
+				+ numPhases + " phases");
+	}
+
+	private int parties;
+
+	private Runnable action;
+
+	/** The number of threads that have arrived in the current phase. */
+	private int arrived = 0;
+
+	private long phase = 0;
+
+	private ThreadQueue waitQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+}
@@ -0,0 +1,309 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> is a bounded buffer of 32-bit words shared by any number
+ * of speakers and listeners. Unlike a <tt>Communicator</tt>, a speaker does
+ * not wait for a listener: it only blocks while the buffer is full, and a
+ * listener only blocks while it is empty. Words are delivered in the order
+ * they were spoken.
+ *
+ * <p>
+ * Speakers are served one at a time in the order they arrived, and so are
+ * listeners. The words of a single <tt>speakAll()</tt> therefore reach the
+ * buffer together, not interleaved with another speaker's, and a thread that
+ * arrives while others are waiting cannot overtake them.
+ */
+public class Channel {
+	/**
+	 * Allocate a new channel with room for 16 words.
+	 */
+	public Channel() {
+		this(defaultCapacity);
+	}
+
+	/**
+	 * Allocate a new channel.
+	 *
+	 * @param capacity the number of words the buffer can hold.
+	 */
+	public Channel(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		buffer = new int[capacity];
+		lock = new Lock();
+		notFull = new Condition2(lock);
+		notEmpty = new Condition2(lock);
+		speakerTurn = new Condition2(lock);
+		listenerTurn = new Condition2(lock);
+	}
+
+	/**
+	 * Put <i>word</i> in the buffer, waiting for room if it is full.
+	 *
+	 * @param word the integer to transfer.
+	 */
+	public void speak(int word) {
+		lock.acquire();
+
+		long ticket = waitForSpeakerTurn();
+
+		while (count == buffer.length)
+			notFull.sleep();
+		put(word);
+
+		finishSpeakerTurn(ticket);
+		lock.release();
+	}
+
+	/**
+	 * Put every word of <i>words</i> in the buffer, in order, waiting for
+	 * room as often as necessary. No other speaker's words are placed between
+	 * them.
+	 *
+	 * @param words the integers to transfer.
+	 */
+	public void speakAll(int[] words) {
+		lock.acquire();
+
+		long ticket = waitForSpeakerTurn();
+
+		int done = 0;
+		while (done < words.length) {
+			while (count == buffer.length)
+				notFull.sleep();
+
+			int n = Math.min(words.length - done, buffer.length - count);
+			for (int i = 0; i < n; i++)
+				put(words[done + i]);
+			done += n;
+		}
+
+		finishSpeakerTurn(ticket);
+		lock.release();
+	}
+
+	/**
+	 * Take the next word from the buffer, waiting for one if it is empty.
+	 *
+	 * @return the integer transferred.
+	 */
+	public int listen() {
+		lock.acquire();
+
+		long ticket = waitForListenerTurn();
+
+		while (count == 0)
+			notEmpty.sleep();
+		int word = take();
+
+		finishListenerTurn(ticket);
+		lock.release();
+		return word;
+	}
+
+	/**
+	 * Take as many words as are available, up to the length of
+	 * <i>words</i>, waiting until there is at least one.
+	 *
+	 * @param words the array to store the words in, starting at index 0.
+	 * @return the number of words transferred, at least 1 unless
+	 * <i>words</i> is empty.
+	 */
+	public int listenBatch(int[] words) {
+		if (words.length == 0)
+			return 0;
+
+		lock.acquire();
+
+		long ticket = waitForListenerTurn();
+
+		while (count == 0)
+			notEmpty.sleep();
+
+		int n = Math.min(words.length, count);
+		for (int i = 0; i < n; i++)
+			words[i] = take();
+
+		finishListenerTurn(ticket);
+		lock.release();
+		return n;
+	}
+
+	/**
+	 * Return the number of words the buffer can hold.
+	 *
+	 * @return the capacity of this channel.
+	 */
+	public int getCapacity() {
+		return buffer.length;
+	}
+
+	private void put(int word) {
+		buffer[(head + count) % buffer.length] = word;
+		count++;
+
+		// only the listener whose turn it is ever waits for a word
+		if (count == 1)
+			notEmpty.wake();
+	}
+
+	private int take() {
+		int word = buffer[head];
+		head = (head + 1) % buffer.length;
+		count--;
+
+		// only the speaker whose turn it is ever waits for room
+		if (count == buffer.length - 1)
+			notFull.wake();
+
+		return word;
+	}
+
+	/*
+	 * Speakers and listeners each take a ticket and wait on their turn
+	 * condition until it is served. A condition variable wakes its threads
+	 * in whatever order the scheduler chooses, not necessarily ticket order,
+	 * so the end of a turn wakes every thread waiting for one and each
+	 * checks whether its own ticket is being served.
+	 */
+
+	private long waitForSpeakerTurn() {
+		long ticket = nextSpeaker++;
+		while (ticket != servingSpeaker)
+			speakerTurn.sleep();
+		return ticket;
+	}
+
+	private void finishSpeakerTurn(long ticket) {
+		servingSpeaker = ticket + 1;
+		if (nextSpeaker != servingSpeaker)
+			speakerTurn.wakeAll();
+	}
+
+	private long waitForListenerTurn() {
+		long ticket = nextListener++;
+		while (ticket != servingListener)
+			listenerTurn.sleep();
+		return ticket;
+	}
+
+	private void finishListenerTurn(long ticket) {
+		servingListener = ticket + 1;
+		if (nextListener != servingListener)
+			listenerTurn.wakeAll();
+	}
+
+	private int[] buffer;
+
+	/** The index of the oldest word in the buffer. */
+	private int head = 0;
+
+	/** The number of words in the buffer. */
+	private int count = 0;
+
+	private long nextSpeaker = 0, servingSpeaker = 0;
+
+	private long nextListener = 0, servingListener = 0;
+
+	private Lock lock;
+
+	private Condition2 notFull, notEmpty, speakerTurn, listenerTurn;
+
+	private static final int defaultCapacity = 16;
+
+	/**
+	 * Test that this module is working. Three speakers each send a numbered
+	 * sequence, one word at a time or in batches, to three listeners through
+	 * a small channel. Every word must arrive exactly once, and each listener
+	 * must see each speaker's words in order.
+	 */
+	public static void selfTest() {
+		final Channel channel = new Channel(4);
+		final int numSpeakers = 3, numListeners = 3, wordsPerSpeaker = 300;
+		final int total = numSpeakers * wordsPerSpeaker;
+		final int[] received = new int[total];
+
+		KThread[] threads = new KThread[numSpeakers + numListeners];
+
+		for (int i = 0; i < numSpeakers; i++) {
+			final int id = i;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					int[] batch = new int[7];
+					int next = 0;
+					while (next < wordsPerSpeaker) {
+						if (id == 0) {
+							channel.speak(id * wordsPerSpeaker + next++);
+							continue;
+						}
+						int n = Math.min(batch.length, wordsPerSpeaker - next);
+						int[] words = (n == batch.length ? batch : new int[n]);
+						for (int j = 0; j < n; j++)
+							words[j] = id * wordsPerSpeaker + next++;
+						channel.speakAll(words);
+					}
+				}
+			}).setName("channel speaker " + i);
+		}
+
+		for (int i = 0; i < numListeners; i++) {
+			final int id = i;
+			threads[numSpeakers + i] = new KThread(new Runnable() {
+				public void run() {
+					int[] batch = new int[5];
+					int[] lastSeen = new int[numSpeakers];
+					for (int j = 0; j < numSpeakers; j++)
+						lastSeen[j] = -1;
+
+					while (true) {
+						int n;
+						if (id == 0) {
+							batch[0] = channel.listen();
+							n = 1;
+						}
+						else {
+							n = channel.listenBatch(batch);
+						}
+
+						// a negative word means stop; pass on any extra ones
+						int stops = 0;
+						for (int j = 0; j < n; j++) {
+							int word = batch[j];
+							if (word < 0) {
+								stops++;
+								continue;
+							}
+							int speaker = word / wordsPerSpeaker;
+							Lib.assertTrue(word % wordsPerSpeaker > lastSeen[speaker],
+									"words from one speaker out of order");
+							lastSeen[speaker] = word % wordsPerSpeaker;
+							received[word]++;
+						}
+						if (stops > 0) {
+							for (int j = 1; j < stops; j++)
+								channel.speak(-1);
+							return;
+						}
+					}
+				}
+			}).setName("channel listener " + i);
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].fork();
+		for (int i = 0; i < numSpeakers; i++)
+			threads[i].join();
+		for (int i = 0; i < numListeners; i++)
+			channel.speak(-1);
+		for (int i = 0; i < numListeners; i++)
+			threads[numSpeakers + i].join();
+
+		for (int i = 0; i < total; i++)
+			Lib.assertTrue(received[i] == 1, "word " + i + " received "
+					+ received[i] + " times");
+
+		System.out.println("Channel: " + total + " words delivered exactly once");
+	}
+}
@@ -0,0 +1,261 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that gives each thread a share of the processor proportional to
+ * its weight, by tracking how much <i>virtual runtime</i> each thread has
+ * consumed.
+ *
+ * <p>
+ * Whenever a thread gives up the processor, or a timer interrupt occurs, the
+ * ticks it has run since it was dispatched are added to its virtual runtime,
+ * scaled down by its weight relative to <tt>priorityDefault</tt>. Waiting
+ * threads are kept in a tree ordered by virtual runtime, and the next thread
+ * to receive access is always the one that has run the least. The current
+ * thread is only preempted once its virtual runtime is more than
+ * <tt>CompletelyFairScheduler.granularity</tt> ticks ahead of the thread at
+ * the front of the ready queue.
+ *
+ * <p>
+ * A thread that becomes ready after sleeping has its virtual runtime raised
+ * to no less than the smallest virtual runtime in the ready queue minus one
+ * granularity, so that it runs soon but cannot make up all the time it spent
+ * asleep. New threads are placed the same way.
+ *
+ * <p>
+ * The priority of a thread is its weight. Weights are not donated.
+ */
+public class CompletelyFairScheduler extends Scheduler {
+	/**
+	 * Allocate a new completely-fair scheduler.
+	 */
+	public CompletelyFairScheduler() {
+		granularity = Config.getInteger("CompletelyFairScheduler.granularity",
+				defaultGranularity);
+	}
+
+	/**
+	 * Allocate a new thread queue ordered by virtual runtime.
+	 *
+	 * @param transferPriority ignored. Weights are never donated.
+	 * @return a new fair thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new FairQueue();
+	}
+
+	/**
+	 * Allocate the ready queue, and remember it so that threads becoming
+	 * ready can be placed relative to the threads already there.
+	 *
+	 * @return the new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		readyQueue = new FairQueue();
+		return readyQueue;
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).weight;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		ThreadState state = getThreadState(thread);
+		if (state.thread == KThread.currentThread())
+			state.charge();
+
+		state.weight = priority;
+	}
+
+	public void runningThread(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		getThreadState(thread).runningSince = Machine.timer().getTime();
+	}
+
+	public void stoppingThread(KThread thread, boolean blocked) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		getThreadState(thread).charge();
+	}
+
+	/**
+	 * Charge the current thread for the time it has run, and preempt it if it
+	 * is more than one granularity ahead of the first ready thread.
+	 *
+	 * @return <tt>true</tt> if the current thread should yield.
+	 */
+	public boolean preemptCurrentThread() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(KThread.currentThread());
+		state.charge();
+
+		if (readyQueue == null || readyQueue.tree.isEmpty())
+			return false;
+
+		return state.vruntime - readyQueue.tree.first().vruntime > granularity;
+	}
+
+	/**
+	 * The default weight for a new thread.
+	 */
+	public static final int priorityDefault = 1024;
+
+	/**
+	 * The minimum weight that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum weight that a thread can have.
+	 */
+	public static final int priorityMaximum = 1024 * 1024;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps waiting threads in a tree ordered by
+	 * virtual runtime.
+	 */
+	protected class FairQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+
+			if (this == readyQueue) {
+				long floor = minVruntime - granularity;
+				if (state.vruntime < floor)
+					state.vruntime = floor;
+			}
+
+			state.sequence = numEnqueued++;
+			tree.add(state);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (tree.isEmpty())
+				return null;
+
+			ThreadState state = tree.pollFirst();
+			if (state.vruntime > minVruntime)
+				minVruntime = state.vruntime;
+
+			return state.thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(tree.isEmpty());
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Iterator<ThreadState> i = tree.iterator(); i.hasNext();) {
+				ThreadState state = i.next();
+				System.out.print(state.thread + " (vruntime " + state.vruntime
+						+ ") ");
+			}
+		}
+
+		/** The largest virtual runtime dequeued so far; never decreases. */
+		long minVruntime = 0;
+
+		private long numEnqueued = 0;
+
+		private TreeSet<ThreadState> tree = new TreeSet<ThreadState>();
+	}
+
+	/**
+	 * The scheduling state of a thread: its weight and virtual runtime.
+	 */
+	protected class ThreadState implements Comparable<ThreadState> {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Add the ticks run since the associated thread was dispatched, or
+		 * last charged, to its virtual runtime.
+		 */
+		void charge() {
+			long time = Machine.timer().getTime();
+
+			// carry the remainder so that heavy threads are charged exactly
+			long scaled = (time - runningSince) * priorityDefault + remainder;
+			runningSince = time;
+
+			vruntime += scaled / weight;
+			remainder = scaled % weight;
+		}
+
+		public int compareTo(ThreadState that) {
+			if (vruntime != that.vruntime)
+				return vruntime < that.vruntime ? -1 : 1;
+			if (sequence != that.sequence)
+				return sequence < that.sequence ? -1 : 1;
+			return 0;
+		}
+
+		/** The thread with which this object is associated. */
+		KThread thread;
+
+		/** The weight of the associated thread. */
+		int weight = priorityDefault;
+
+		/** The virtual runtime of the associated thread. */
+		long vruntime = 0;
+
+		/** The time at which the associated thread last started running. */
+		long runningSince = 0;
+
+		/** Scaled ticks run but not yet added to the virtual runtime. */
+		long remainder = 0;
+
+		/** The order in which this thread joined its current queue. */
+		long sequence = 0;
+	}
+
+	private FairQueue readyQueue = null;
+
+	private long granularity;
+
+	private static final int defaultGranularity = 1000;
+}
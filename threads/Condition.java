@@ -62,6 +62,23 @@ public class Condition {
 		this.conditionLock = conditionLock;
 
 		waitQueue = new LinkedList<Semaphore>();
+
+		if (LockStat.enabled)
+			stat = LockStat.forNewObject("Condition");
+	}
+
+	/**
+	 * Give this condition variable a name to be used in place of its creation
+	 * site when contention is profiled.
+	 *
+	 * @param name the name to use.
+	 * @return this condition variable.
+	 */
+	public Condition setName(String name) {
+		if (LockStat.enabled)
+			stat = LockStat.rename(stat, "Condition", name);
+
+		return this;
 	}
 
 	/**
@@ -82,9 +99,18 @@ public class Condition {
 		Semaphore waiter = new Semaphore(0);
 		waitQueue.add(waiter);
 
+		long waitStart = 0;
+		if (LockStat.enabled && stat != null) {
+			stat.acquire(waitQueue.size());
+			waitStart = Machine.timer().getTime();
+		}
+
 		conditionLock.release();
 		waiter.P();
 		conditionLock.acquire();
+
+		if (LockStat.enabled && stat != null)
+			stat.waited(Machine.timer().getTime() - waitStart);
 	}
 
 	/**
@@ -153,4 +179,7 @@ public class Condition {
 	private Lock conditionLock;
 
 	private LinkedList<Semaphore> waitQueue;
+
+	/** Contention statistics, if profiling is enabled. */
+	private LockStat stat = null;
 }
@@ -6,16 +6,22 @@ import java.util.LinkedList;
 /**
  * An implementation of condition variables that disables interrupt()s for
  * synchronization.
- * 
+ *
  * <p>
- * You must implement this.
- * 
+ * Waiting threads join a queue from the scheduler, which chooses the thread
+ * that <tt>wake()</tt> wakes. They are also kept in a list, in the order they
+ * came, threaded through a small per-thread record that is allocated the
+ * first time a thread waits and reused afterwards, so <tt>sleep()</tt> and
+ * <tt>wake()</tt> allocate nothing themselves. A thread can also wait with a
+ * timeout using <tt>sleepFor()</tt>; the timeout is filed in the alarm, and
+ * cancelled if the thread is woken first.
+ *
  * @see nachos.threads.Condition
  */
 public class Condition2 {
-	/** 	
+	/**
 	 * Allocate a new condition variable.
-	 * 
+	 *
 	 * @param conditionLock the lock associated with this condition variable.
 	 * The current thread must hold this lock whenever it uses <tt>sleep()</tt>,
 	 * <tt>wake()</tt>, or <tt>wakeAll()</tt>.
@@ -23,8 +29,24 @@ public class Condition2 {
 	public Condition2(Lock conditionLock) {
 		this.conditionLock = conditionLock;
 
-		//1.2
-		waitQueue = new LinkedList<KThread>();
+		waitQueue = new Waiter(null);
+
+		if (LockStat.enabled)
+			stat = LockStat.forNewObject("Condition2");
+	}
+
+	/**
+	 * Give this condition variable a name to be used in place of its creation
+	 * site when contention is profiled.
+	 *
+	 * @param name the name to use.
+	 * @return this condition variable.
+	 */
+	public Condition2 setName(String name) {
+		if (LockStat.enabled)
+			stat = LockStat.rename(stat, "Condition2", name);
+
+		return this;
 	}
 
 	/**
@@ -36,20 +58,60 @@ public class Condition2 {
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		// Check 1.2
-		waitQueue.add(KThread.currentThread());
+		// Interrupts stay disabled from joining the queue until the thread
+		// sleeps, so a wake() in between cannot be lost.
+		boolean intStatus = Machine.interrupt().disable();
 
+		enqueue(KThread.currentThread());
+		long waitStart = (LockStat.enabled && stat != null ? startWait() : 0);
 		conditionLock.release();
+		KThread.sleep();
+
+		Machine.interrupt().restore(intStatus);
+
+		conditionLock.acquire();
+
+		if (LockStat.enabled && stat != null)
+			stat.waited(Machine.timer().getTime() - waitStart);
+	}
+
+	/**
+	 * Atomically release the associated lock and go to sleep on this condition
+	 * variable until another thread wakes it using <tt>wake()</tt>, or until
+	 * at least <i>ticks</i> clock ticks have passed, whichever comes first.
+	 * The current thread must hold the associated lock. The thread will
+	 * automatically reacquire the lock before <tt>sleepFor()</tt> returns.
+	 *
+	 * @param ticks the maximum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+	 * <tt>wakeAll()</tt>, or <tt>false</tt> if the time ran out first.
+	 */
+	public boolean sleepFor(long ticks) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		if (ticks <= 0)
+			return false;
 
-		// Check 1.2
 		boolean intStatus = Machine.interrupt().disable();
 
-		waitThread.waitForAccess(KThread.currentThread());
+		KThread thread = KThread.currentThread();
+		Waiter waiter = enqueue(thread);
+		ThreadedKernel.alarm.setTimeout(thread, Machine.timer().getTime()
+				+ ticks, timeout);
+		long waitStart = (LockStat.enabled && stat != null ? startWait() : 0);
+		conditionLock.release();
 		KThread.sleep();
 
+		boolean woken = waiter.woken;
+
 		Machine.interrupt().restore(intStatus);
 
 		conditionLock.acquire();
+
+		if (LockStat.enabled && stat != null)
+			stat.waited(Machine.timer().getTime() - waitStart);
+
+		return woken;
 	}
 
 	/**
@@ -60,15 +122,17 @@ public class Condition2 {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
 		boolean intStatus = Machine.interrupt().disable();
-		// Check 1.2
-		if(!waitQueue.isEmpty()){			
-			KThread thread = waitThread.nextThread();
 
-			thread.ready();
+		KThread thread = waitThread.nextThread();
+		if (thread != null) {
+			Waiter waiter = (Waiter) thread.conditionState;
+			remove(waiter);
+			waiter.woken = true;
+			ThreadedKernel.alarm.cancelTimeout(waiter.thread);
+			waiter.thread.ready();
 		}
 
 		Machine.interrupt().restore(intStatus);
-
 	}
 
 	/**
@@ -77,17 +141,99 @@ public class Condition2 {
 	 */
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-		while(!waitQueue.isEmpty()){
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		while (waitQueue.next != waitQueue)
 			wake();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Called by the alarm, with interrupts disabled, when a thread waiting in
+	 * <tt>sleepFor()</tt> runs out of time. Takes the thread off this
+	 * condition variable; the alarm then wakes it. A scheduler's queue cannot
+	 * give up one particular thread, so it is emptied and the threads still
+	 * waiting join it again in the order they first came.
+	 */
+	private Alarm.TimedWait timeout = new Alarm.TimedWait() {
+		public void timedOut(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			remove((Waiter) thread.conditionState);
+
+			while (waitThread.nextThread() != null)
+				;
+			for (Waiter w = waitQueue.next; w != waitQueue; w = w.next)
+				waitThread.waitForAccess(w.thread);
 		}
+	};
+
+	/**
+	 * Count a sleep in this condition variable's statistics and return the
+	 * time it started. Waiting threads are counted by walking the queue,
+	 * which only happens when profiling.
+	 */
+	private long startWait() {
+		int queueLength = 0;
+		for (Waiter w = waitQueue.next; w != waitQueue; w = w.next)
+			queueLength++;
+
+		stat.acquire(queueLength);
+		return Machine.timer().getTime();
+	}
+
+	private Waiter enqueue(KThread thread) {
+		if (thread.conditionState == null)
+			thread.conditionState = new Waiter(thread);
+
+		Waiter waiter = (Waiter) thread.conditionState;
+		waiter.woken = false;
+
+		waiter.next = waitQueue;
+		waiter.prev = waitQueue.prev;
+		waitQueue.prev.next = waiter;
+		waitQueue.prev = waiter;
+
+		waitThread.waitForAccess(thread);
+
+		return waiter;
+	}
+
+	private void remove(Waiter waiter) {
+		waiter.prev.next = waiter.next;
+		waiter.next.prev = waiter.prev;
+		waiter.next = waiter.prev = null;
+	}
+
+	/**
+	 * A thread's entry in a condition variable's wait queue. A thread waits on
+	 * at most one condition variable at a time, so each thread needs only
+	 * one. The head of each queue is a waiter with no thread.
+	 */
+	private static class Waiter {
+		Waiter(KThread thread) {
+			this.thread = thread;
+			next = prev = this;
+		}
+
+		/** The waiting thread. */
+		KThread thread;
+
+		/** The neighbours of this waiter in the queue. */
+		Waiter next, prev;
+
+		/** <tt>true</tt> if the thread was woken rather than timed out. */
+		boolean woken;
 	}
-/*
+
 	public static void selfTest(){
 	    final Lock lock = new Lock();
 	    // final Condition empty = new Condition(lock);
 	    final Condition2 empty = new Condition2(lock);
 	    final LinkedList<Integer> list = new LinkedList<>();
-	    
+
 	    KThread consumer = new KThread( new Runnable () {
 	        public void run() {
 	            lock.acquire();
@@ -101,7 +247,7 @@ public class Condition2 {
 	            lock.release();
 	        }
 	    });
-	    
+
 	    KThread producer = new KThread( new Runnable () {
 	        public void run() {
 	            lock.acquire();
@@ -113,22 +259,79 @@ public class Condition2 {
 	            lock.release();
 	        }
 	    });
-	    
+
 	    consumer.setName("Consumer");
 	    producer.setName("Producer");
 	    consumer.fork();
 	    producer.fork();
 	    consumer.join();
 	    producer.join();
+
+	    // Timed waits: one times out, one is woken before its deadline, and
+	    // the cancelled timeout must not wake it again later.
+	    final Condition2 timed = new Condition2(lock);
+	    final boolean[] results = new boolean[2];
+	    final long[] waited = new long[2];
+	    final boolean[] wokenAgain = new boolean[1];
+
+	    KThread sleeper = new KThread( new Runnable () {
+	        public void run() {
+	            lock.acquire();
+	            long start = Machine.timer().getTime();
+	            results[0] = timed.sleepFor(1000);
+	            waited[0] = Machine.timer().getTime() - start;
+	            lock.release();
+	        }
+	    });
+	    sleeper.setName("Timed out");
+	    sleeper.fork();
+	    sleeper.join();
+
+	    Lib.assertTrue(!results[0], "sleepFor() should have timed out.");
+	    Lib.assertTrue(waited[0] >= 1000, "sleepFor() returned too early.");
+	    System.out.println("sleepFor(1000) timed out after " + waited[0]);
+
+	    KThread signalled = new KThread( new Runnable () {
+	        public void run() {
+	            lock.acquire();
+	            long start = Machine.timer().getTime();
+	            results[1] = timed.sleepFor(100000);
+	            waited[1] = Machine.timer().getTime() - start;
+	            // sleep past the old deadline; only the wake() below may end it
+	            timed.sleep();
+	            Lib.assertTrue(wokenAgain[0], "cancelled timeout woke thread.");
+	            lock.release();
+	        }
+	    });
+	    signalled.setName("Signalled");
+	    signalled.fork();
+
+	    ThreadedKernel.alarm.waitUntil(5000);
+	    lock.acquire();
+	    timed.wake();
+	    lock.release();
+
+	    ThreadedKernel.alarm.waitUntil(200000);
+	    Lib.assertTrue(results[1], "sleepFor() should have been woken.");
+	    Lib.assertTrue(waited[1] < 100000, "sleepFor() was not woken early.");
+
+	    lock.acquire();
+	    wokenAgain[0] = true;
+	    timed.wake();
+	    lock.release();
+	    signalled.join();
+	    System.out.println("sleepFor(100000) woken after " + waited[1]);
 	}
-	*/
 
 	private Lock conditionLock;
 
+	/** The scheduler's queue of waiting threads. */
 	private ThreadQueue waitThread = ThreadedKernel.scheduler
 			.newThreadQueue(false);
 
-	private LinkedList<KThread> waitQueue;
-
+	/** The head of the circular list of waiting threads. */
+	private Waiter waitQueue;
 
+	/** Contention statistics, if profiling is enabled. */
+	private LockStat stat = null;
 }
@@ -0,0 +1,72 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>CountDownLatch</tt> lets threads wait until a number of events have
+ * happened. It starts with a count, each event calls <tt>countDown()</tt>,
+ * and <tt>await()</tt> returns once the count reaches zero. The count never
+ * goes back up, so a latch is used only once.
+ *
+ * <p>
+ * Waiting threads sleep on a single <tt>ThreadQueue</tt>, and are all woken
+ * by the final <tt>countDown()</tt>; counting down does not allocate.
+ */
+public class CountDownLatch {
+	/**
+	 * Allocate a new latch.
+	 *
+	 * @param count the number of calls to <tt>countDown()</tt> needed to
+	 * release waiting threads.
+	 */
+	public CountDownLatch(int count) {
+		Lib.assertTrue(count >= 0);
+
+		this.count = count;
+	}
+
+	/**
+	 * Decrement the count, and wake every waiting thread if it reaches zero.
+	 * Does nothing if the count is already zero. This may be called from an
+	 * interrupt handler.
+	 */
+	public void countDown() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (count > 0 && --count == 0) {
+			KThread thread;
+			while ((thread = waitQueue.nextThread()) != null)
+				thread.ready();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Wait until the count reaches zero. Returns at once if it already has.
+	 */
+	public void await() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (count > 0) {
+			waitQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the number of calls to <tt>countDown()</tt> still needed.
+	 *
+	 * @return the current count.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	private int count;
+
+	private ThreadQueue waitQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+}
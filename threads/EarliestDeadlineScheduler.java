@@ -0,0 +1,538 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler with an earliest-deadline-first real-time class on top of an
+ * ordinary scheduler.
+ *
+ * <p>
+ * Most threads are scheduled by a <i>background</i> scheduler, named by the
+ * <tt>EarliestDeadlineScheduler.background</tt> configuration key (round
+ * robin by default). A thread can instead join the real-time class by calling
+ * <tt>setRealTime()</tt> with a period and a budget: in every period it may
+ * run for up to <i>budget</i> ticks, and it should finish that work before
+ * the end of the period, which is its deadline. Ready real-time threads
+ * always run before background threads, earliest deadline first.
+ *
+ * <p>
+ * A thread is only admitted to the real-time class if the total utilization
+ * (the sum of budget divided by period over all real-time threads) stays at
+ * or below <tt>EarliestDeadlineScheduler.maxUtilization</tt>. Under that
+ * condition EDF meets every deadline.
+ *
+ * <p>
+ * Budgets are enforced at timer interrupts. A real-time thread that has used
+ * up its budget is not run again until its next period starts. A real-time
+ * thread that has finished the work for the current period calls
+ * <tt>waitForNextPeriod()</tt>; if a period ends before it does so, the
+ * thread has missed its deadline, and the miss is counted.
+ */
+public class EarliestDeadlineScheduler extends Scheduler {
+	/**
+	 * Allocate a new EDF scheduler, and the background scheduler it runs
+	 * ordinary threads with.
+	 */
+	public EarliestDeadlineScheduler() {
+		background = (Scheduler) Lib.constructObject(Config.getString(
+				"EarliestDeadlineScheduler.background",
+				"nachos.threads.RoundRobinScheduler"));
+		maxUtilization = Config.getDouble(
+				"EarliestDeadlineScheduler.maxUtilization",
+				defaultMaxUtilization);
+	}
+
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new DeadlineQueue(background.newThreadQueue(transferPriority));
+	}
+
+	public ThreadQueue newReadyQueue() {
+		readyQueue = new DeadlineQueue(background.newReadyQueue());
+		return readyQueue;
+	}
+
+	public int getPriority(KThread thread) {
+		return background.getPriority(thread);
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return background.getEffectivePriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		background.setPriority(thread, priority);
+	}
+
+	public boolean increasePriority() {
+		return background.increasePriority();
+	}
+
+	public boolean decreasePriority() {
+		return background.decreasePriority();
+	}
+
+	/**
+	 * Move the specified thread into the real-time class. Its first period
+	 * starts now. The thread must not already be real-time, and must not be
+	 * waiting on any queue.
+	 *
+	 * @param thread the thread to admit.
+	 * @param period the length of each period, in ticks.
+	 * @param budget the number of ticks the thread may run in each period.
+	 * @return <tt>true</tt> if the thread was admitted, or <tt>false</tt> if
+	 * admitting it would exceed the maximum utilization.
+	 */
+	public boolean setRealTime(KThread thread, long period, long budget) {
+		Lib.assertTrue(period > 0 && budget > 0 && budget <= period);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue(!realTime.containsKey(thread));
+
+		double u = (double) budget / period;
+		boolean admitted = utilization + u <= maxUtilization;
+
+		if (admitted) {
+			utilization += u;
+			realTime.put(thread, new RealTimeState(thread, period, budget));
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return admitted;
+	}
+
+	/**
+	 * Move the specified thread back to the background scheduler, releasing
+	 * its share of the utilization. A real-time thread must call this before
+	 * it finishes. The thread must not be waiting on any queue.
+	 *
+	 * @param thread the thread to remove from the real-time class.
+	 */
+	public void clearRealTime(KThread thread) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		RealTimeState state = realTime.remove(thread);
+		Lib.assertTrue(state != null && state.queue == null);
+
+		utilization -= (double) state.budget / state.period;
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Called by a real-time thread when it has finished its work for the
+	 * current period. Sleeps until the next period starts. If the deadline
+	 * has already passed, the miss is counted and the next period starts at
+	 * once, without sleeping.
+	 */
+	public void waitForNextPeriod() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		RealTimeState state = realTime.get(KThread.currentThread());
+		Lib.assertTrue(state != null);
+
+		long time = Machine.timer().getTime();
+		if (state.deadline <= time) {
+			// the period ended before a timer interrupt could replenish it
+			state.charge();
+			state.replenish(time);
+		}
+		else {
+			state.completed = true;
+			state.waiting = true;
+			KThread.sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the number of deadlines the specified real-time thread has
+	 * missed.
+	 *
+	 * @param thread a real-time thread.
+	 * @return the number of periods that ended before the thread called
+	 * <tt>waitForNextPeriod()</tt>.
+	 */
+	public int getDeadlineMisses(KThread thread) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		RealTimeState state = realTime.get(thread);
+		Lib.assertTrue(state != null);
+		int misses = state.misses;
+
+		Machine.interrupt().restore(intStatus);
+		return misses;
+	}
+
+	/**
+	 * Return the total utilization of all admitted real-time threads.
+	 *
+	 * @return the sum of budget divided by period over real-time threads.
+	 */
+	public double getUtilization() {
+		return utilization;
+	}
+
+	public void runningThread(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		RealTimeState state = realTime.get(thread);
+		if (state != null)
+			state.runningSince = Machine.timer().getTime();
+		else
+			background.runningThread(thread);
+	}
+
+	public void stoppingThread(KThread thread, boolean blocked) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		RealTimeState state = realTime.get(thread);
+		if (state != null)
+			state.charge();
+		else
+			background.stoppingThread(thread, blocked);
+	}
+
+	/**
+	 * Start new periods for every real-time thread whose deadline has passed,
+	 * charge the current thread, and decide whether it should be preempted. A
+	 * real-time thread is preempted when its budget runs out or a ready
+	 * real-time thread has an earlier deadline. A background thread is
+	 * preempted when any real-time thread is ready, and otherwise whenever
+	 * the background scheduler says so.
+	 *
+	 * @return <tt>true</tt> if the current thread should yield.
+	 */
+	public boolean preemptCurrentThread() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long time = Machine.timer().getTime();
+
+		for (Iterator<RealTimeState> i = realTime.values().iterator(); i
+				.hasNext();) {
+			RealTimeState state = i.next();
+			if (state.deadline <= time)
+				state.replenish(time);
+		}
+
+		KThread thread = KThread.currentThread();
+		RealTimeState current = realTime.get(thread);
+		RealTimeState next = readyQueue == null ? null : readyQueue
+				.pickNextRealTime();
+
+		if (current == null) {
+			if (next != null)
+				return true;
+			return background.preemptCurrentThread();
+		}
+
+		current.charge();
+		if (current.remaining <= 0)
+			return true;
+
+		return next != null && next.deadline < current.deadline;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds real-time threads in deadline order,
+	 * in front of a background queue for every other thread.
+	 */
+	protected class DeadlineQueue extends ThreadQueue {
+		DeadlineQueue(ThreadQueue backgroundQueue) {
+			this.backgroundQueue = backgroundQueue;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			RealTimeState state = realTime.get(thread);
+			if (state == null) {
+				backgroundQueue.waitForAccess(thread);
+				return;
+			}
+
+			Lib.assertTrue(state.queue == null);
+
+			state.sequence = numEnqueued++;
+			state.queue = this;
+			tree.add(state);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			RealTimeState state = pickNextRealTime();
+			if (state == null)
+				return backgroundQueue.nextThread();
+
+			tree.remove(state);
+			state.queue = null;
+
+			return state.thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (!realTime.containsKey(thread))
+				backgroundQueue.acquire(thread);
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Iterator<RealTimeState> i = tree.iterator(); i.hasNext();) {
+				RealTimeState state = i.next();
+				System.out.print(state.thread + " (deadline " + state.deadline
+						+ ") ");
+			}
+
+			backgroundQueue.print();
+		}
+
+		/**
+		 * Return the real-time thread that <tt>nextThread()</tt> would return,
+		 * without modifying this queue. On the ready queue, threads that have
+		 * used up their budget are skipped.
+		 *
+		 * @return the first eligible real-time thread, or <tt>null</tt> if
+		 * there is none.
+		 */
+		RealTimeState pickNextRealTime() {
+			for (Iterator<RealTimeState> i = tree.iterator(); i.hasNext();) {
+				RealTimeState state = i.next();
+				if (this != readyQueue || state.remaining > 0)
+					return state;
+			}
+
+			return null;
+		}
+
+		private ThreadQueue backgroundQueue;
+
+		private long numEnqueued = 0;
+
+		private TreeSet<RealTimeState> tree = new TreeSet<RealTimeState>();
+	}
+
+	/**
+	 * The scheduling state of a real-time thread.
+	 */
+	protected class RealTimeState implements Comparable<RealTimeState> {
+		RealTimeState(KThread thread, long period, long budget) {
+			this.thread = thread;
+			this.period = period;
+			this.budget = budget;
+
+			long time = Machine.timer().getTime();
+			deadline = time + period;
+			remaining = budget;
+			runningSince = time;
+		}
+
+		/**
+		 * Subtract the ticks run since this thread was dispatched, or last
+		 * charged, from its remaining budget.
+		 */
+		void charge() {
+			long time = Machine.timer().getTime();
+
+			remaining -= time - runningSince;
+			runningSince = time;
+		}
+
+		/**
+		 * Start a new period. Counts a deadline miss if the thread did not
+		 * finish the work for the period that just ended, and wakes the thread
+		 * if it is waiting for the new period.
+		 *
+		 * @param time the current time.
+		 */
+		void replenish(long time) {
+			if (!completed) {
+				misses++;
+				Lib.debug(dbgEDF, thread + " missed deadline " + deadline);
+			}
+
+			DeadlineQueue q = queue;
+			if (q != null)
+				q.tree.remove(this);
+
+			while (deadline <= time)
+				deadline += period;
+			remaining = budget;
+			completed = false;
+
+			if (q != null)
+				q.tree.add(this);
+
+			if (waiting) {
+				waiting = false;
+				thread.ready();
+			}
+		}
+
+		public int compareTo(RealTimeState that) {
+			if (deadline != that.deadline)
+				return deadline < that.deadline ? -1 : 1;
+			if (sequence != that.sequence)
+				return sequence < that.sequence ? -1 : 1;
+			return 0;
+		}
+
+		/** The thread with which this object is associated. */
+		KThread thread;
+
+		/** The length of each period. */
+		long period;
+
+		/** The ticks the thread may run in each period. */
+		long budget;
+
+		/** The end of the current period. */
+		long deadline;
+
+		/** The ticks left in the current period's budget. */
+		long remaining;
+
+		/** The time at which the thread last started running. */
+		long runningSince;
+
+		/** <tt>true</tt> if the work for the current period is done. */
+		boolean completed = false;
+
+		/** <tt>true</tt> if sleeping in <tt>waitForNextPeriod()</tt>. */
+		boolean waiting = false;
+
+		/** The number of deadlines missed. */
+		int misses = 0;
+
+		/** The queue this thread is waiting on, if any. */
+		DeadlineQueue queue = null;
+
+		/** The order in which this thread joined its current queue. */
+		long sequence = 0;
+	}
+
+	/**
+	 * A real-time thread whose work takes longer than its budget, so that it
+	 * is held back until its next period and misses its first deadline.
+	 */
+	private static class OverrunTest implements Runnable {
+		OverrunTest(long period, long budget) {
+			this.period = period;
+			this.budget = budget;
+		}
+
+		public void run() {
+			EarliestDeadlineScheduler scheduler =
+				(EarliestDeadlineScheduler) ThreadedKernel.scheduler;
+			KThread thread = KThread.currentThread();
+
+			Lib.assertTrue(scheduler.setRealTime(thread, period, budget));
+
+			long start = Machine.timer().getTime();
+			long deadline = start + period;
+
+			// work for more than the budget, noting when it ran
+			while (Machine.timer().getTime() < start + 2 * budget) {
+				Machine.interrupt().disable();
+				Machine.interrupt().enable();
+
+				long time = Machine.timer().getTime();
+				if (time > start + budget + timerSlack && time < deadline)
+					ranOverBudget = true;
+			}
+
+			scheduler.waitForNextPeriod();
+			missesAfterOverrun = scheduler.getDeadlineMisses(thread);
+
+			// call waitForNextPeriod() after the deadline, before a timer
+			// interrupt has started the next period
+			boolean intStatus = Machine.interrupt().disable();
+			RealTimeState state = scheduler.realTime.get(thread);
+			state.deadline = Machine.timer().getTime();
+			long before = state.deadline;
+			scheduler.waitForNextPeriod();
+			lateCallSlept = Machine.timer().getTime() != before;
+			missesAfterLateCall = scheduler.getDeadlineMisses(thread);
+			Machine.interrupt().restore(intStatus);
+
+			scheduler.clearRealTime(thread);
+		}
+
+		private long period, budget;
+
+		private boolean ranOverBudget = false, lateCallSlept;
+
+		private int missesAfterOverrun, missesAfterLateCall;
+
+		/** How late a timer interrupt may come to stop the thread. */
+		private static final long timerSlack = Stats.TimerTicks;
+	}
+
+	/**
+	 * Test that this module is working. Checks that admission control keeps
+	 * the utilization under the maximum, that a thread which overruns its
+	 * budget is held back until its next period and misses its deadline,
+	 * and that a late call to <tt>waitForNextPeriod()</tt> counts the miss.
+	 * This test should only be run when <tt>ThreadedKernel.scheduler</tt> is
+	 * an <tt>EarliestDeadlineScheduler</tt>.
+	 */
+	public static void selfTest() {
+		Lib.assertTrue(ThreadedKernel.scheduler instanceof
+				EarliestDeadlineScheduler);
+		EarliestDeadlineScheduler scheduler =
+			(EarliestDeadlineScheduler) ThreadedKernel.scheduler;
+
+		Lib.assertTrue(scheduler.maxUtilization > 0.1
+				&& scheduler.maxUtilization <= 1.0);
+
+		// fill the utilization to just under the maximum, but not over it
+		long period = 1000;
+		long limit = (long) (period * scheduler.maxUtilization);
+		KThread a = new KThread().setName("edf admit a");
+		KThread b = new KThread().setName("edf admit b");
+		Lib.assertTrue(scheduler.setRealTime(a, period, limit / 2));
+		Lib.assertTrue(!scheduler.setRealTime(b, period, limit - limit / 2 + 50),
+				"admission exceeded the maximum utilization");
+		Lib.assertTrue(scheduler.setRealTime(b, period, limit - limit / 2 - 50));
+		scheduler.clearRealTime(a);
+		scheduler.clearRealTime(b);
+		Lib.assertTrue(Math.abs(scheduler.getUtilization()) < 1e-9);
+
+		OverrunTest test = new OverrunTest(8000, 2000);
+		KThread thread = new KThread(test).setName("edf overrun");
+		thread.fork();
+		thread.join();
+
+		System.out.println("EarliestDeadlineScheduler: overrun misses "
+				+ test.missesAfterOverrun + ", after late call "
+				+ test.missesAfterLateCall);
+
+		Lib.assertTrue(!test.ranOverBudget, "thread ran past its budget");
+		Lib.assertTrue(test.missesAfterOverrun == 1,
+				"overrun did not miss exactly one deadline");
+		Lib.assertTrue(!test.lateCallSlept && test.missesAfterLateCall == 2,
+				"late waitForNextPeriod() did not count the miss");
+	}
+
+	private Scheduler background;
+
+	private DeadlineQueue readyQueue = null;
+
+	private HashMap<KThread, RealTimeState> realTime = new HashMap<KThread, RealTimeState>();
+
+	private double utilization = 0;
+
+	private double maxUtilization;
+
+	private static final double defaultMaxUtilization = 0.9;
+
+	private static final char dbgEDF = 'e';
+}
@@ -0,0 +1,315 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+
+/**
+ * The result of an operation that finishes some time after it is started,
+ * such as a task submitted to a <tt>KThreadPool</tt> or an asynchronous
+ * device request. The operation completes the future once, with its result.
+ *
+ * <p>
+ * Any number of threads can wait for a future, with or without a time
+ * limit, and any number of callbacks can be attached to run when it
+ * completes. A thread can therefore start many operations and then wait for
+ * all of them, or for the first, using <tt>all()</tt> and <tt>any()</tt>,
+ * instead of needing one thread per operation in flight.
+ *
+ * @see nachos.threads.KThreadPool
+ */
+public class KFuture<T> {
+	/**
+	 * Allocate a new future that is not yet complete.
+	 */
+	public KFuture() {
+	}
+
+	/**
+	 * Code to run when a future completes.
+	 */
+	public interface Callback<T> {
+		/**
+		 * Called once, when the future completes.
+		 *
+		 * @param result the result of the operation.
+		 */
+		void completed(T result);
+	}
+
+	/**
+	 * Complete this future with the specified result, wake every thread
+	 * waiting for it, and run its callbacks. Does nothing if this future is
+	 * already complete. This may be called from an interrupt handler.
+	 *
+	 * @param result the result of the operation.
+	 * @return <tt>true</tt> if this call completed the future.
+	 */
+	public boolean complete(T result) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (done) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+
+		this.result = result;
+		done = true;
+
+		if (waiters != null) {
+			for (int i = 0; i < waiters.size(); i++) {
+				KThread thread = waiters.get(i);
+				ThreadedKernel.alarm.cancelTimeout(thread);
+				thread.ready();
+			}
+			waiters = null;
+		}
+
+		ArrayList<Callback<? super T>> toRun = callbacks;
+		callbacks = null;
+
+		Machine.interrupt().restore(intStatus);
+
+		if (toRun != null) {
+			for (int i = 0; i < toRun.size(); i++)
+				toRun.get(i).completed(result);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Wait for this future to complete, and return its result. Returns at
+	 * once if it is already complete.
+	 *
+	 * @return the result of the operation.
+	 */
+	public T join() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (!done) {
+			addWaiter(KThread.currentThread());
+			KThread.sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return result;
+	}
+
+	/**
+	 * Wait for this future to complete, for at most <i>ticks</i> clock
+	 * ticks.
+	 *
+	 * @param ticks the maximum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the future is complete, or <tt>false</tt> if
+	 * the time ran out first.
+	 */
+	public boolean join(long ticks) {
+		if (ticks <= 0)
+			return done;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (!done) {
+			KThread thread = KThread.currentThread();
+			addWaiter(thread);
+			if (timeout == null)
+				timeout = newTimeout();
+			ThreadedKernel.alarm.setTimeout(thread, Machine.timer().getTime()
+					+ ticks, timeout);
+			KThread.sleep();
+		}
+
+		boolean completed = done;
+
+		Machine.interrupt().restore(intStatus);
+		return completed;
+	}
+
+	/**
+	 * Return the result of this future, which must be complete.
+	 *
+	 * @return the result of the operation.
+	 */
+	public T getResult() {
+		Lib.assertTrue(done);
+
+		return result;
+	}
+
+	/**
+	 * Test if this future is complete.
+	 *
+	 * @return <tt>true</tt> if the operation has finished.
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Arrange for <i>callback</i> to be run when this future completes.
+	 * Callbacks run in the order they were added, in the thread that
+	 * completes the future, which may be an interrupt handler, so they must
+	 * not block. If this future is already complete, the callback is run at
+	 * once by the current thread.
+	 *
+	 * @param callback the code to run.
+	 */
+	public void onComplete(Callback<? super T> callback) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (!done) {
+			if (callbacks == null)
+				callbacks = new ArrayList<Callback<? super T>>(2);
+			callbacks.add(callback);
+
+			Machine.interrupt().restore(intStatus);
+			return;
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		callback.completed(result);
+	}
+
+	/**
+	 * Return a future that completes when every one of <i>futures</i> has
+	 * completed.
+	 *
+	 * @param futures the futures to wait for.
+	 * @return a future with a <tt>null</tt> result.
+	 */
+	public static KFuture<Void> all(KFuture<?>... futures) {
+		final KFuture<Void> all = new KFuture<Void>();
+		final int[] remaining = new int[] { futures.length };
+
+		if (futures.length == 0) {
+			all.complete(null);
+			return all;
+		}
+
+		Callback<Object> countDown = new Callback<Object>() {
+			public void completed(Object result) {
+				boolean intStatus = Machine.interrupt().disable();
+				boolean last = (--remaining[0] == 0);
+				Machine.interrupt().restore(intStatus);
+
+				if (last)
+					all.complete(null);
+			}
+		};
+
+		for (int i = 0; i < futures.length; i++)
+			futures[i].onComplete(countDown);
+
+		return all;
+	}
+
+	/**
+	 * Return a future that completes, with the same result, when the first
+	 * of <i>futures</i> completes.
+	 *
+	 * @param futures the futures to wait for; there must be at least one.
+	 * @return a future with the first result.
+	 */
+	@SafeVarargs
+	public static <T> KFuture<T> any(KFuture<? extends T>... futures) {
+		Lib.assertTrue(futures.length > 0);
+
+		final KFuture<T> any = new KFuture<T>();
+
+		Callback<T> first = new Callback<T>() {
+			public void completed(T result) {
+				any.complete(result);
+			}
+		};
+
+		for (int i = 0; i < futures.length; i++)
+			futures[i].onComplete(first);
+
+		return any;
+	}
+
+	private void addWaiter(KThread thread) {
+		// most futures are never waited on, so the list is made lazily
+		if (waiters == null)
+			waiters = new ArrayList<KThread>(2);
+		waiters.add(thread);
+	}
+
+	/**
+	 * Return the object the alarm calls, with interrupts disabled, when a
+	 * thread waiting in <tt>join(long)</tt> runs out of time.
+	 */
+	private Alarm.TimedWait newTimeout() {
+		return new Alarm.TimedWait() {
+			public void timedOut(KThread thread) {
+				waiters.remove(thread);
+			}
+		};
+	}
+
+	/**
+	 * Test that this module is working. Checks timed joins, callbacks, and
+	 * <tt>all()</tt> and <tt>any()</tt> over futures completed by threads
+	 * sleeping for different times.
+	 */
+	public static void selfTest() {
+		final KFuture<Integer> slow = new KFuture<Integer>();
+		final KFuture<Integer> fast = new KFuture<Integer>();
+		final int[] calls = new int[1];
+
+		fast.onComplete(new Callback<Integer>() {
+			public void completed(Integer result) {
+				Lib.assertTrue(result.intValue() == 1);
+				calls[0]++;
+			}
+		});
+
+		KFuture<Void> both = all(slow, fast);
+		KFuture<Integer> first = any(slow, fast);
+
+		completeAfter(slow, 2, 4000);
+		completeAfter(fast, 1, 1000);
+
+		Lib.assertTrue(!slow.join(500), "join(500) should have timed out");
+		Lib.assertTrue(first.join().intValue() == 1, "any() took the wrong result");
+		Lib.assertTrue(calls[0] == 1, "callback did not run");
+		Lib.assertTrue(!both.isDone(), "all() completed too early");
+		Lib.assertTrue(both.join(100000), "all() did not complete");
+		Lib.assertTrue(slow.getResult().intValue() == 2);
+
+		// a callback added after completion runs at once
+		slow.onComplete(new Callback<Integer>() {
+			public void completed(Integer result) {
+				calls[0]++;
+			}
+		});
+		Lib.assertTrue(calls[0] == 2);
+		Lib.assertTrue(!slow.complete(3) && slow.join().intValue() == 2);
+
+		System.out.println("KFuture: timed join, callbacks, all and any work");
+	}
+
+	private static void completeAfter(final KFuture<Integer> future,
+			final int result, final long ticks) {
+		new KThread(new Runnable() {
+			public void run() {
+				ThreadedKernel.alarm.waitUntil(ticks);
+				future.complete(new Integer(result));
+			}
+		}).setName("completer " + result).fork();
+	}
+
+	private T result = null;
+
+	private boolean done = false;
+
+	/** The threads waiting for this future, if any. */
+	private ArrayList<KThread> waiters = null;
+
+	private Alarm.TimedWait timeout = null;
+
+	/** The callbacks to run on completion, if any. */
+	private ArrayList<Callback<? super T>> callbacks = null;
+}
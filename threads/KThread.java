@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.ArrayList;
+
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -54,16 +56,11 @@ public class KThread {
 	 * create an idle thread as well.
 	 */
 	public KThread() {
-
-		// Part 1.1
-		// Initialize the semaphore
-		smp = new Semaphore(0);
-
 		if (currentThread != null) {
 			tcb = new TCB();
 		}
 		else {
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+			readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 			readyQueue.acquire(this);
 
 			currentThread = this;
@@ -209,13 +206,27 @@ public class KThread {
 		currentThread.status = statusFinished;
 
 		// Part 1.1
-		currentThread.smpFinish();
+		currentThread.wakeJoiners();
 
 		sleep();
 	}
 
-	public void smpFinish(){
-		smp.V();
+	/**
+	 * Wake every thread waiting for this thread to finish, in
+	 * <tt>join()</tt> or <tt>joinAll()</tt>.
+	 */
+	private void wakeJoiners() {
+		if (joinQueue != null) {
+			KThread thread;
+			while ((thread = joinQueue.nextThread()) != null)
+				thread.ready();
+		}
+
+		if (finishLatches != null) {
+			for (int i = 0; i < finishLatches.size(); i++)
+				finishLatches.get(i).countDown();
+			finishLatches = null;
+		}
 	}
 
 	/**
@@ -289,19 +300,76 @@ public class KThread {
 
 	/**
 	 * Waits for this thread to finish. If this thread is already finished,
-	 * return immediately. This method must only be called once; the second call
-	 * is not guaranteed to return. This thread must not be the current thread.
+	 * return immediately. Any number of threads may join the same thread, and
+	 * a thread may be joined more than once. This thread must not be the
+	 * current thread.
 	 */
 	public void join() {
 		Lib.debug(dbgThread, "Joining to thread: " + toString());
 
 		Lib.assertTrue(this != currentThread);
 
+		boolean intStatus = Machine.interrupt().disable();
+
 		// Part 1.1
 		// Tell this thread(thread 2) to sleep 
-		smp.P();
+		if (status != statusFinished) {
+			// made on first use, since most threads are never joined
+			if (joinQueue == null)
+				joinQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 
+			joinQueue.waitForAccess(currentThread);
+			sleep();
+		}
 
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Waits for every one of the specified threads to finish. The current
+	 * thread sleeps at most once, and is woken by whichever thread finishes
+	 * last, rather than joining each thread in turn. None of the threads may
+	 * be the current thread.
+	 *
+	 * @param threads the threads to wait for.
+	 */
+	public static void joinAll(KThread... threads) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int unfinished = 0;
+		for (int i = 0; i < threads.length; i++) {
+			Lib.assertTrue(threads[i] != currentThread);
+			if (threads[i].status != statusFinished)
+				unfinished++;
+		}
+
+		if (unfinished > 0) {
+			CountDownLatch latch = new CountDownLatch(unfinished);
+
+			for (int i = 0; i < threads.length; i++) {
+				KThread thread = threads[i];
+				if (thread.status == statusFinished)
+					continue;
+
+				if (thread.finishLatches == null)
+					thread.finishLatches = new ArrayList<CountDownLatch>(1);
+				thread.finishLatches.add(latch);
+			}
+
+			latch.await();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the number of times the processor has been switched from one
+	 * thread to a different thread since Nachos started.
+	 * 
+	 * @return the number of context switches so far.
+	 */
+	public static long getNumContextSwitches() {
+		return numContextSwitches;
 	}
 
 	/**
@@ -330,10 +398,13 @@ public class KThread {
 	}
 
 	/**
-	 * Determine the next thread to run, then dispatch the CPU to the thread
-	 * using <tt>run()</tt>.
+	 * Wake any sleeping threads that are due, determine the next thread to
+	 * run, then dispatch the CPU to the thread using <tt>run()</tt>.
 	 */
 	private static void runNextThread() {
+		if (ThreadedKernel.alarm != null)
+			ThreadedKernel.alarm.checkDeadlines();
+
 		KThread nextThread = readyQueue.nextThread();
 		if (nextThread == null)
 			nextThread = idleThread;
@@ -370,6 +441,9 @@ public class KThread {
 		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 				+ " to: " + toString());
 
+		if (this != currentThread)
+			numContextSwitches++;
+
 		currentThread = this;
 
 		tcb.contextSwitch();
@@ -392,6 +466,8 @@ public class KThread {
 
 		status = statusRunning;
 
+		ThreadedKernel.scheduler.runningThread(this);
+
 		if (toBeDestroyed != null) {
 			toBeDestroyed.tcb.destroy();
 			toBeDestroyed.tcb = null;
@@ -400,12 +476,14 @@ public class KThread {
 	}
 
 	/**
-	 * Prepare this thread to give up the processor. Kernel threads do not need
-	 * to do anything here.
+	 * Prepare this thread to give up the processor. Kernel threads only need
+	 * to tell the scheduler that they are stopping.
 	 */
 	protected void saveState() {
 		Lib.assertTrue(Machine.interrupt().disabled());
 		Lib.assertTrue(this == currentThread);
+
+		ThreadedKernel.scheduler.stoppingThread(this, status == statusBlocked);
 	}
 
 	private static class PingTest implements Runnable {
@@ -456,6 +534,22 @@ public class KThread {
 	 */
 	public Object schedulingState = null;
 
+	/**
+	 * Additional state used by the alarm: this thread's entry in the timing
+	 * wheel.
+	 *
+	 * @see nachos.threads.Alarm
+	 */
+	Object alarmState = null;
+
+	/**
+	 * Additional state used by condition variables: this thread's entry in
+	 * the wait queue of the <tt>Condition2</tt> it is sleeping on.
+	 *
+	 * @see nachos.threads.Condition2
+	 */
+	Object conditionState = null;
+
 	private static final int statusNew = 0;
 
 	private static final int statusReady = 1;
@@ -480,7 +574,11 @@ public class KThread {
 	private TCB tcb;
 
 	// Part 1.1
-	private Semaphore smp;
+	/** Threads waiting in <tt>join()</tt>, made by the first joiner. */
+	private ThreadQueue joinQueue = null;
+
+	/** The latches of threads waiting in <tt>joinAll()</tt>, if any. */
+	private ArrayList<CountDownLatch> finishLatches = null;
 
 	/**
 	 * Unique identifer for this thread. Used to deterministically compare
@@ -491,6 +589,9 @@ public class KThread {
 	/** Number of times the KThread constructor was called. */
 	private static int numCreated = 0;
 
+	/** Number of times <tt>run()</tt> switched to a different thread. */
+	private static long numContextSwitches = 0;
+
 	private static ThreadQueue readyQueue = null;
 
 	private static KThread currentThread = null;
@@ -0,0 +1,230 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * A set of worker threads that run submitted tasks, so that code with many
+ * short concurrent activities does not have to create and destroy a
+ * <tt>KThread</tt> for each one.
+ *
+ * <p>
+ * The pool keeps between <i>minWorkers</i> and <i>maxWorkers</i> workers.
+ * It starts with <i>minWorkers</i>, and adds a worker when a task is
+ * submitted while there are more queued tasks than idle workers. A worker
+ * beyond the minimum that has been idle for <tt>idleTicks</tt> ticks
+ * finishes. A pool with equal bounds is fixed-size.
+ *
+ * <p>
+ * Tasks are run in the order they were submitted. A task that blocks holds
+ * its worker until it returns.
+ */
+public class KThreadPool {
+	/**
+	 * Allocate a new pool with a fixed number of workers.
+	 *
+	 * @param numWorkers the number of worker threads.
+	 */
+	public KThreadPool(int numWorkers) {
+		this(numWorkers, numWorkers);
+	}
+
+	/**
+	 * Allocate a new pool whose size varies with its load.
+	 *
+	 * @param minWorkers the number of workers kept even when idle.
+	 * @param maxWorkers the most workers the pool will create.
+	 */
+	public KThreadPool(int minWorkers, int maxWorkers) {
+		Lib.assertTrue(minWorkers >= 0 && maxWorkers >= 1
+				&& minWorkers <= maxWorkers);
+
+		this.minWorkers = minWorkers;
+		this.maxWorkers = maxWorkers;
+
+		lock = new Lock();
+		workAvailable = new Condition2(lock);
+
+		lock.acquire();
+		for (int i = 0; i < minWorkers; i++)
+			startWorker();
+		lock.release();
+	}
+
+	/**
+	 * Queue a task to be run by a worker.
+	 *
+	 * @param task the task to run.
+	 * @return a future that is completed when the task returns.
+	 */
+	public KFuture<Void> submit(Runnable task) {
+		KFuture<Void> future = new KFuture<Void>();
+
+		lock.acquire();
+
+		Lib.assertTrue(!shutdown, "task submitted after shutdown");
+
+		tasks.add(new Task(task, future));
+
+		// every idle worker, including any already woken, will take a task
+		if (tasks.size() > numIdle && workers.size() < maxWorkers)
+			startWorker();
+		else if (numIdle > 0)
+			workAvailable.wake();
+
+		lock.release();
+
+		return future;
+	}
+
+	/**
+	 * Stop accepting tasks, wait for the queued tasks to finish, and wait for
+	 * every worker to finish. Must not be called by a task.
+	 */
+	public void shutdown() {
+		lock.acquire();
+
+		shutdown = true;
+		workAvailable.wakeAll();
+		ArrayList<KThread> remaining = new ArrayList<KThread>(workers);
+
+		lock.release();
+
+		for (int i = 0; i < remaining.size(); i++) {
+			Lib.assertTrue(remaining.get(i) != KThread.currentThread());
+			remaining.get(i).join();
+		}
+	}
+
+	/**
+	 * Return the number of worker threads.
+	 *
+	 * @return the current size of the pool.
+	 */
+	public int getNumWorkers() {
+		return workers.size();
+	}
+
+	private void startWorker() {
+		KThread worker = new KThread(new Runnable() {
+			public void run() {
+				runWorker();
+			}
+		}).setName("pool worker " + numStarted++);
+
+		workers.add(worker);
+		worker.fork();
+	}
+
+	private void runWorker() {
+		lock.acquire();
+
+		while (true) {
+			while (tasks.isEmpty() && !shutdown) {
+				boolean woken = true;
+
+				numIdle++;
+				if (workers.size() > minWorkers)
+					woken = workAvailable.sleepFor(idleTicks);
+				else
+					workAvailable.sleep();
+				numIdle--;
+
+				if (!woken && tasks.isEmpty()
+						&& workers.size() > minWorkers) {
+					retire();
+					return;
+				}
+			}
+
+			if (tasks.isEmpty())
+				break;
+
+			Task task = tasks.removeFirst();
+
+			lock.release();
+			task.runnable.run();
+			task.future.complete(null);
+			lock.acquire();
+		}
+
+		retire();
+	}
+
+	private void retire() {
+		workers.remove(KThread.currentThread());
+		lock.release();
+	}
+
+	/**
+	 * Test that this module is working. An elastic pool runs tasks that
+	 * yield, so the pool must grow; every task must run exactly once, and
+	 * the extra workers must finish once the pool is idle.
+	 */
+	public static void selfTest() {
+		final KThreadPool pool = new KThreadPool(1, 4);
+		final int[] runs = new int[50];
+		KFuture<?>[] futures = new KFuture<?>[runs.length];
+
+		for (int i = 0; i < runs.length; i++) {
+			final int id = i;
+			futures[i] = pool.submit(new Runnable() {
+				public void run() {
+					KThread.yield();
+					runs[id]++;
+				}
+			});
+		}
+
+		for (int i = 0; i < futures.length; i++)
+			futures[i].join();
+		for (int i = 0; i < runs.length; i++)
+			Lib.assertTrue(runs[i] == 1, "task " + i + " ran " + runs[i]
+					+ " times");
+
+		int grown = pool.getNumWorkers();
+		Lib.assertTrue(grown > 1, "pool did not grow");
+
+		ThreadedKernel.alarm.waitUntil(idleTicks * 2);
+		Lib.assertTrue(pool.getNumWorkers() == 1, "idle workers did not finish");
+
+		pool.shutdown();
+		Lib.assertTrue(pool.getNumWorkers() == 0);
+
+		System.out.println("KThreadPool: " + runs.length + " tasks on up to "
+				+ grown + " workers");
+	}
+
+	/** A queued task and the future to complete when it returns. */
+	private static class Task {
+		Task(Runnable runnable, KFuture<Void> future) {
+			this.runnable = runnable;
+			this.future = future;
+		}
+
+		Runnable runnable;
+
+		KFuture<Void> future;
+	}
+
+	private int minWorkers, maxWorkers;
+
+	private ArrayList<KThread> workers = new ArrayList<KThread>();
+
+	private int numIdle = 0;
+
+	private int numStarted = 0;
+
+	private boolean shutdown = false;
+
+	private LinkedList<Task> tasks = new LinkedList<Task>();
+
+	private Lock lock;
+
+	private Condition2 workAvailable;
+
+	/** How long a worker beyond the minimum waits for work before finishing. */
+	private static final long idleTicks = 5000;
+}
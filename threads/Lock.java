@@ -23,6 +23,22 @@ public class Lock {
 	 * Allocate a new lock. The lock will initially be <i>free</i>.
 	 */
 	public Lock() {
+		if (LockStat.enabled)
+			stat = LockStat.forNewObject("Lock");
+	}
+
+	/**
+	 * Give this lock a name to be used in place of its creation site when
+	 * contention is profiled.
+	 *
+	 * @param name the name to use.
+	 * @return this lock.
+	 */
+	public Lock setName(String name) {
+		if (LockStat.enabled)
+			stat = LockStat.rename(stat, "Lock", name);
+
+		return this;
 	}
 
 	/**
@@ -36,16 +52,33 @@ public class Lock {
 		KThread thread = KThread.currentThread();
 
 		if (lockHolder != null) {
+			long waitStart = 0;
+			if (LockStat.enabled && stat != null) {
+				stat.acquire(++numWaiting);
+				waitStart = Machine.timer().getTime();
+			}
+
 			waitQueue.waitForAccess(thread);
 			KThread.sleep();
+
+			if (LockStat.enabled && stat != null) {
+				numWaiting--;
+				stat.waited(Machine.timer().getTime() - waitStart);
+			}
 		}
 		else {
+			if (LockStat.enabled && stat != null)
+				stat.acquire(0);
+
 			waitQueue.acquire(thread);
 			lockHolder = thread;
 		}
 
 		Lib.assertTrue(lockHolder == thread);
 
+		if (LockStat.enabled && stat != null)
+			heldSince = Machine.timer().getTime();
+
 		Machine.interrupt().restore(intStatus);
 	}
 
@@ -57,6 +90,9 @@ public class Lock {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		if (LockStat.enabled && stat != null)
+			stat.held(Machine.timer().getTime() - heldSince);
+
 		if ((lockHolder = waitQueue.nextThread()) != null)
 			lockHolder.ready();
 
@@ -74,6 +110,15 @@ public class Lock {
 
 	private KThread lockHolder = null;
 
+	/** Contention statistics, if profiling is enabled. */
+	private LockStat stat = null;
+
+	/** The number of threads waiting, kept only when profiling. */
+	private int numWaiting = 0;
+
+	/** When the holder acquired this lock, kept only when profiling. */
+	private long heldSince = 0;
+
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(true);
 }
@@ -0,0 +1,238 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Contention statistics for locks, semaphores and condition variables.
+ *
+ * <p>
+ * Profiling is turned on by setting <tt>LockStat.enabled</tt> to
+ * <tt>true</tt> in the configuration file. It is read once, into a
+ * <tt>static final</tt> field, and every use in the synchronization classes
+ * is guarded by that field, so when profiling is off no statistics are
+ * allocated and no extra work is done.
+ *
+ * <p>
+ * When profiling is on, each synchronization object is given a label: the
+ * kind of object followed by the place in the kernel that created it, or a
+ * name given with <tt>setName()</tt>. All objects with the same label share
+ * one set of statistics. For each label the profiler counts acquisitions
+ * (calls to <tt>acquire()</tt>, <tt>P()</tt> or <tt>sleep()</tt>), how many
+ * of them had to wait, the total ticks spent waiting, the total ticks a lock
+ * was held, and the longest wait queue seen. The table is printed, busiest
+ * first, when the kernel terminates.
+ */
+public class LockStat {
+	/**
+	 * <tt>true</tt> if synchronization objects should be profiled.
+	 */
+	public static final boolean enabled = Config.getBoolean(
+			"LockStat.enabled", false);
+
+	/**
+	 * Return the statistics for a new synchronization object, labelled by
+	 * the code that is creating it.
+	 *
+	 * @param kind the kind of object, such as <tt>"Lock"</tt>.
+	 * @return the shared statistics for that label, or <tt>null</tt> if
+	 * profiling is disabled.
+	 */
+	static LockStat forNewObject(String kind) {
+		if (!enabled)
+			return null;
+
+		String site = creationSite();
+		if (site == null)
+			return null;
+
+		return forLabel(kind + " " + site);
+	}
+
+	/**
+	 * Move a synchronization object's statistics to an explicitly named
+	 * label. Only acquisitions made after this call are counted under the
+	 * new label. An object that had no statistics, because another
+	 * synchronization class created it, is counted from now on.
+	 *
+	 * @param stat the object's current statistics, or <tt>null</tt>.
+	 * @param kind the kind of object, such as <tt>"Lock"</tt>.
+	 * @param name the name to use.
+	 * @return the shared statistics for the new label.
+	 */
+	static LockStat rename(LockStat stat, String kind, String name) {
+		if (stat != null)
+			stat.numObjects--;
+		return forLabel(kind + " " + name);
+	}
+
+	private static LockStat forLabel(String label) {
+		LockStat stat = stats.get(label);
+		if (stat == null) {
+			stat = new LockStat(label);
+			stats.put(label, stat);
+		}
+
+		stat.numObjects++;
+		return stat;
+	}
+
+	/**
+	 * Return the frame on the current stack that called the constructor of
+	 * the new synchronization object. Objects created inside another
+	 * synchronization class, such as the semaphore <tt>Condition</tt> uses
+	 * for each waiter, are counted by that class, so for those this returns
+	 * <tt>null</tt>.
+	 */
+	private static String creationSite() {
+		StackTraceElement[] trace = new Throwable().getStackTrace();
+
+		// skip this class and the constructor
+		int i = 0;
+		while (i < trace.length
+				&& trace[i].getClassName().equals(LockStat.class.getName()))
+			i++;
+		i++;
+
+		if (i >= trace.length)
+			return "(unknown)";
+		if (isSynchronizationClass(trace[i].getClassName()))
+			return null;
+
+		return trace[i].toString();
+	}
+
+	private static boolean isSynchronizationClass(String className) {
+		return className.equals(Lock.class.getName())
+				|| className.equals(Semaphore.class.getName())
+				|| className.equals(Condition.class.getName())
+				|| className.equals(Condition2.class.getName());
+	}
+
+	private LockStat(String label) {
+		this.label = label;
+	}
+
+	/**
+	 * Count one acquisition.
+	 *
+	 * @param queueLength the number of threads waiting, including the
+	 * current thread if it must wait, or 0 if it does not have to wait.
+	 */
+	void acquire(int queueLength) {
+		acquisitions++;
+
+		if (queueLength > 0) {
+			contended++;
+			if (queueLength > maxQueueLength)
+				maxQueueLength = queueLength;
+		}
+	}
+
+	/**
+	 * Add to the total time spent waiting.
+	 *
+	 * @param ticks the number of ticks one thread waited.
+	 */
+	void waited(long ticks) {
+		waitTicks += ticks;
+	}
+
+	/**
+	 * Add to the total time held.
+	 *
+	 * @param ticks the number of ticks one thread held a lock.
+	 */
+	void held(long ticks) {
+		holdTicks += ticks;
+	}
+
+	/**
+	 * Print the statistics of every label, most waited-on first.
+	 */
+	public static void print() {
+		ArrayList<LockStat> list = new ArrayList<LockStat>(stats.values());
+		Collections.sort(list, new Comparator<LockStat>() {
+			public int compare(LockStat a, LockStat b) {
+				if (a.waitTicks != b.waitTicks)
+					return a.waitTicks > b.waitTicks ? -1 : 1;
+				if (a.acquisitions != b.acquisitions)
+					return a.acquisitions > b.acquisitions ? -1 : 1;
+				return a.label.compareTo(b.label);
+			}
+		});
+
+		System.out.println("LockStat: objects, acquisitions, contended, "
+				+ "wait ticks, hold ticks, max queue, label");
+
+		for (int i = 0; i < list.size(); i++) {
+			LockStat stat = list.get(i);
+			if (stat.acquisitions == 0)
+				continue;
+
+			System.out.println("LockStat: " + stat.numObjects + ", "
+					+ stat.acquisitions + ", " + stat.contended + ", "
+					+ stat.waitTicks + ", " + stat.holdTicks + ", "
+					+ stat.maxQueueLength + ", " + stat.label);
+		}
+	}
+
+	/**
+	 * Test that profiling works, including for objects created inside the
+	 * synchronization classes, which have no statistics of their own. This
+	 * test should only be run with <tt>LockStat.enabled</tt> set.
+	 */
+	public static void selfTest() {
+		Lib.assertTrue(enabled, "LockStat.enabled is not set");
+
+		// its lock and condition variables are created in Condition2
+		Condition2.selfTest();
+
+		// naming an object that has no statistics starts counting it
+		LockStat unnamed = rename(null, "Lock", "LockStat unnamed");
+		Lib.assertTrue(unnamed.numObjects == 1);
+
+		final Lock lock = new Lock().setName("LockStat test");
+		LockStat stat = stats.get("Lock LockStat test");
+		Lib.assertTrue(stat != null && stat.numObjects == 1);
+
+		KThread holder = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				for (int i = 0; i < 10; i++)
+					KThread.yield();
+				lock.release();
+			}
+		}).setName("LockStat holder");
+
+		holder.fork();
+		KThread.yield();
+		lock.acquire();
+		lock.release();
+		holder.join();
+
+		Lib.assertTrue(stat.acquisitions == 2 && stat.contended == 1,
+				"contention was not counted");
+		Lib.assertTrue(stat.waitTicks > 0 && stat.holdTicks > 0);
+	}
+
+	private String label;
+
+	private int numObjects = 0;
+
+	private long acquisitions = 0;
+
+	private long contended = 0;
+
+	private long waitTicks = 0;
+
+	private long holdTicks = 0;
+
+	private int maxQueueLength = 0;
+
+	private static HashMap<String, LockStat> stats = new HashMap<String, LockStat>();
+}
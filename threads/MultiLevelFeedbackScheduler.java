@@ -0,0 +1,321 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.StringTokenizer;
+
+/**
+ * A multi-level feedback queue scheduler. Threads are kept in a number of
+ * levels, each a FIFO queue with its own time quantum. The next thread to
+ * receive access is always the thread that has been waiting longest in the
+ * highest non-empty level.
+ *
+ * <p>
+ * A thread that uses up its quantum is moved down one level, where quanta are
+ * longer. A thread that blocks before its quantum runs out (for example while
+ * waiting for the console, the file system or the network) is moved up one
+ * level. Every so often all threads are boosted back to the top level, so
+ * that CPU-bound threads at the bottom cannot starve.
+ *
+ * <p>
+ * Unlike the round-robin scheduler, the current thread is not preempted on
+ * every timer interrupt, but only when its quantum has expired or when a
+ * thread in a higher level is ready to run.
+ *
+ * <p>
+ * The quanta are set by the <tt>MultiLevelFeedbackScheduler.quanta</tt>
+ * configuration key, a comma-separated list of tick counts with the top level
+ * first. The boost period is set by the
+ * <tt>MultiLevelFeedbackScheduler.boostPeriod</tt> key.
+ */
+public class MultiLevelFeedbackScheduler extends Scheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MultiLevelFeedbackScheduler() {
+		StringTokenizer st = new StringTokenizer(Config.getString(
+				"MultiLevelFeedbackScheduler.quanta", defaultQuanta), ", ");
+
+		quanta = new long[st.countTokens()];
+		Lib.assertTrue(quanta.length > 0, "no MLFQ levels configured");
+
+		for (int i = 0; i < quanta.length; i++) {
+			try {
+				quanta[i] = Long.parseLong(st.nextToken());
+			}
+			catch (NumberFormatException e) {
+				Lib.assertNotReached("bad MLFQ quantum");
+			}
+			Lib.assertTrue(quanta[i] > 0, "bad MLFQ quantum");
+		}
+
+		boostPeriod = Config.getInteger("MultiLevelFeedbackScheduler.boostPeriod",
+				defaultBoostPeriod);
+	}
+
+	/**
+	 * Allocate a new multi-level thread queue.
+	 *
+	 * @param transferPriority ignored. Levels are never donated.
+	 * @return a new multi-level thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MultiLevelQueue();
+	}
+
+	/**
+	 * Allocate the ready queue, and remember it so that the timer interrupt
+	 * can tell whether a higher-level thread is waiting to run.
+	 *
+	 * @return the new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		readyQueue = new MultiLevelQueue();
+		return readyQueue;
+	}
+
+	/**
+	 * Return the priority of the specified thread. The top level has priority
+	 * <tt>getNumLevels() - 1</tt> and the bottom level has priority 0.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return quanta.length - 1 - getThreadState(thread).getLevel();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= 0 && priority < quanta.length);
+
+		ThreadState state = getThreadState(thread);
+		state.level = quanta.length - 1 - priority;
+		state.used = 0;
+	}
+
+	/**
+	 * Return the number of levels in this scheduler.
+	 *
+	 * @return the number of levels.
+	 */
+	public int getNumLevels() {
+		return quanta.length;
+	}
+
+	public void runningThread(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		getThreadState(thread).runningSince = Machine.timer().getTime();
+	}
+
+	public void stoppingThread(KThread thread, boolean blocked) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		ThreadState state = getThreadState(thread);
+		state.charge();
+
+		if (blocked) {
+			if (state.level > 0)
+				state.level--;
+			state.used = 0;
+		}
+		else if (state.used >= quanta[state.level]) {
+			state.demote();
+		}
+	}
+
+	/**
+	 * Charge the current thread for the time it has run, boost every thread
+	 * if the boost period has passed, and preempt the current thread if its
+	 * quantum has expired or a higher-level thread is ready.
+	 *
+	 * @return <tt>true</tt> if the current thread should yield.
+	 */
+	public boolean preemptCurrentThread() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long time = Machine.timer().getTime();
+		if (time - lastBoost >= boostPeriod) {
+			lastBoost = time;
+			boostEpoch++;
+			if (readyQueue != null)
+				readyQueue.boost();
+		}
+
+		ThreadState state = getThreadState(KThread.currentThread());
+		state.charge();
+
+		if (state.used >= quanta[state.level]) {
+			state.demote();
+			return true;
+		}
+
+		return readyQueue != null && readyQueue.getTopLevel() < state.level;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState();
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with one FIFO list per level.
+	 */
+	protected class MultiLevelQueue extends ThreadQueue {
+		@SuppressWarnings("unchecked")
+		MultiLevelQueue() {
+			levels = (LinkedList<KThread>[]) new LinkedList<?>[quanta.length];
+			for (int i = 0; i < levels.length; i++)
+				levels[i] = new LinkedList<KThread>();
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			levels[getThreadState(thread).getLevel()].add(thread);
+			size++;
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			int level = getTopLevel();
+			if (level == quanta.length)
+				return null;
+
+			size--;
+			return levels[level].removeFirst();
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(size == 0);
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < levels.length; i++) {
+				for (Iterator<KThread> j = levels[i].iterator(); j.hasNext();)
+					System.out.print(j.next() + " [" + i + "] ");
+			}
+		}
+
+		/**
+		 * Return the highest non-empty level of this queue.
+		 *
+		 * @return the index of the highest non-empty level, or
+		 * <tt>getNumLevels()</tt> if the queue is empty.
+		 */
+		int getTopLevel() {
+			if (size == 0)
+				return quanta.length;
+
+			int level = 0;
+			while (levels[level].isEmpty())
+				level++;
+
+			return level;
+		}
+
+		/**
+		 * Move every waiting thread to the top level, preserving the order in
+		 * which they would have been dequeued.
+		 */
+		void boost() {
+			for (int i = 1; i < levels.length; i++) {
+				levels[0].addAll(levels[i]);
+				levels[i].clear();
+			}
+		}
+
+		private LinkedList<KThread>[] levels;
+
+		private int size = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, and how much of the
+	 * quantum at that level it has used.
+	 */
+	protected class ThreadState {
+		/**
+		 * Return the level of the associated thread, first moving it to the
+		 * top level if a boost has happened since it was last looked at.
+		 *
+		 * @return the level of the associated thread.
+		 */
+		int getLevel() {
+			if (epoch != boostEpoch) {
+				epoch = boostEpoch;
+				level = 0;
+				used = 0;
+			}
+
+			return level;
+		}
+
+		/**
+		 * Add the time since the associated thread last started running, or
+		 * was last charged, to the time it has used at its level.
+		 */
+		void charge() {
+			long time = Machine.timer().getTime();
+
+			getLevel();
+			used += time - runningSince;
+			runningSince = time;
+		}
+
+		/**
+		 * Move the associated thread down one level, with a fresh quantum.
+		 */
+		void demote() {
+			if (level < quanta.length - 1)
+				level++;
+			used = 0;
+		}
+
+		/** The level of the associated thread, 0 being the top. */
+		int level = 0;
+
+		/** The ticks the associated thread has run at its current level. */
+		long used = 0;
+
+		/** The time at which the associated thread last started running. */
+		long runningSince = 0;
+
+		/** The boost epoch at which <tt>level</tt> was last valid. */
+		long epoch = boostEpoch;
+	}
+
+	private MultiLevelQueue readyQueue = null;
+
+	private long[] quanta;
+
+	private long boostPeriod;
+
+	private long lastBoost = 0;
+
+	private long boostEpoch = 0;
+
+	private static final String defaultQuanta = "500,1000,2000,4000";
+
+	private static final int defaultBoostPeriod = 20000;
+}
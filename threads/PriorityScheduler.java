@@ -59,8 +59,8 @@ public class PriorityScheduler extends Scheduler {
 	public void setPriority(KThread thread, int priority) {
 		Lib.assertTrue(Machine.interrupt().disabled());
 
-		Lib.assertTrue(priority >= priorityMinimum
-				&& priority <= priorityMaximum);
+		Lib.assertTrue(priority >= getPriorityMinimum()
+				&& priority <= getPriorityMaximum());
 
 		getThreadState(thread).setPriority(priority);
 	}
@@ -72,7 +72,7 @@ public class PriorityScheduler extends Scheduler {
 		KThread thread = KThread.currentThread();
 
 		int priority = getPriority(thread);
-		if (priority == priorityMaximum)
+		if (priority == getPriorityMaximum())
 			ret = false;
 		else
 			setPriority(thread, priority + 1);
@@ -88,7 +88,7 @@ public class PriorityScheduler extends Scheduler {
 		KThread thread = KThread.currentThread();
 
 		int priority = getPriority(thread);
-		if (priority == priorityMinimum)
+		if (priority == getPriorityMinimum())
 			ret = false;
 		else
 			setPriority(thread, priority - 1);
@@ -112,6 +112,26 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	public static final int priorityMaximum = 7;
 
+	/**
+	 * Return the minimum priority that a thread can have. A subclass whose
+	 * priorities have a different range overrides this.
+	 *
+	 * @return <tt>priorityMinimum</tt>.
+	 */
+	protected int getPriorityMinimum() {
+		return priorityMinimum;
+	}
+
+	/**
+	 * Return the maximum priority that a thread can have. A subclass whose
+	 * priorities have a different range overrides this.
+	 *
+	 * @return <tt>priorityMaximum</tt>.
+	 */
+	protected int getPriorityMaximum() {
+		return priorityMaximum;
+	}
+
 	/**
 	 * Return the scheduling state of the specified thread.
 	 * 
@@ -0,0 +1,235 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+
+/**
+ * A <tt>ReadWriteLock</tt> can be held either by any number of readers at
+ * once, or by a single writer. It suits structures that are read far more
+ * often than they are changed.
+ *
+ * <p>
+ * Writers have preference: once a writer is waiting, new readers wait behind
+ * it, so a steady stream of readers cannot starve writers. When a writer
+ * releases the lock, the next waiting writer gets it if there is one;
+ * otherwise every waiting reader gets it at once.
+ *
+ * <p>
+ * Readers and writers wait in separate queues, both of which transfer
+ * priority. Whoever takes the lock from a queue, or takes it while the queue
+ * is empty, becomes that queue's holder, as <tt>ThreadQueue</tt> requires.
+ * So waiting writers donate to the writer holding the lock, or to the first
+ * reader of the group holding it, and waiting readers donate to a writer
+ * that took the lock while no readers were waiting. A queue's holder cannot
+ * be changed while threads are waiting in it, so a reader group keeps its
+ * donation in its first reader until the whole group is done.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new read-write lock. The lock will initially be free.
+	 */
+	public ReadWriteLock() {
+	}
+
+	/**
+	 * Atomically acquire this lock for reading. The current thread must not
+	 * already hold this lock.
+	 */
+	public void acquireRead() {
+		Lib.assertTrue(!isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (writer != null || waitingWriters > 0) {
+			waitingReaders++;
+			readerQueue.waitForAccess(thread);
+			KThread.sleep();
+		}
+		else {
+			addReader(thread);
+		}
+
+		Lib.assertTrue(readers.contains(thread));
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically release this lock after reading. The current thread must
+	 * hold this lock for reading.
+	 */
+	public void releaseRead() {
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		boolean wasReading = readers.remove(thread);
+		Lib.assertTrue(wasReading);
+
+		if (readers.isEmpty() && waitingWriters > 0)
+			handToWriter();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically acquire this lock for writing. The current thread must not
+	 * already hold this lock.
+	 */
+	public void acquireWrite() {
+		Lib.assertTrue(!isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (writer != null || !readers.isEmpty()) {
+			waitingWriters++;
+			writerQueue.waitForAccess(thread);
+			KThread.sleep();
+		}
+		else {
+			writerQueue.acquire(thread);
+			readerQueue.acquire(thread);
+			writer = thread;
+		}
+
+		Lib.assertTrue(writer == thread);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Atomically release this lock after writing. The current thread must
+	 * hold this lock for writing.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		writer = null;
+
+		if (waitingWriters > 0) {
+			handToWriter();
+		}
+		else {
+			KThread thread;
+			while ((thread = readerQueue.nextThread()) != null) {
+				waitingReaders--;
+				addReader(thread);
+				thread.ready();
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test if the current thread holds this lock, for reading or writing.
+	 *
+	 * @return true if the current thread holds this lock.
+	 */
+	public boolean isHeldByCurrentThread() {
+		return isWriteHeldByCurrentThread()
+				|| readers.contains(KThread.currentThread());
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing.
+	 *
+	 * @return true if the current thread holds this lock for writing.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return (writer == KThread.currentThread());
+	}
+
+	private void addReader(KThread thread) {
+		if (readers.isEmpty())
+			writerQueue.acquire(thread);
+		readers.add(thread);
+	}
+
+	/**
+	 * Give the lock to the next waiting writer. Taking it from the writer
+	 * queue makes the writer that queue's holder.
+	 */
+	private void handToWriter() {
+		writer = writerQueue.nextThread();
+		Lib.assertTrue(writer != null);
+		waitingWriters--;
+
+		if (waitingReaders == 0)
+			readerQueue.acquire(writer);
+
+		writer.ready();
+	}
+
+	/**
+	 * Test that this module is working. Readers and writers repeatedly take
+	 * the lock and sleep while holding it. Readers must be able to overlap,
+	 * and a writer must never overlap anyone.
+	 */
+	public static void selfTest() {
+		final ReadWriteLock lock = new ReadWriteLock();
+		final int[] active = new int[2];
+		final int[] maxReaders = new int[1];
+		final int reading = 0, writing = 1;
+
+		KThread[] threads = new KThread[6];
+		for (int i = 0; i < threads.length; i++) {
+			final boolean isWriter = (i % 3 == 2);
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < 20; j++) {
+						if (isWriter) {
+							lock.acquireWrite();
+							Lib.assertTrue(active[reading] == 0
+									&& active[writing] == 0, "writer overlapped");
+							active[writing]++;
+							ThreadedKernel.alarm.waitUntil(100);
+							active[writing]--;
+							lock.releaseWrite();
+							ThreadedKernel.alarm.waitUntil(500);
+						}
+						else {
+							lock.acquireRead();
+							Lib.assertTrue(active[writing] == 0,
+									"reader overlapped a writer");
+							active[reading]++;
+							maxReaders[0] = Math.max(maxReaders[0],
+									active[reading]);
+							ThreadedKernel.alarm.waitUntil(200);
+							active[reading]--;
+							lock.releaseRead();
+						}
+					}
+				}
+			}).setName((isWriter ? "writer " : "reader ") + i);
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].fork();
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		Lib.assertTrue(maxReaders[0] > 1, "readers never overlapped");
+		System.out.println("ReadWriteLock: up to " + maxReaders[0]
+				+ " readers at once");
+	}
+
+	private KThread writer = null;
+
+	/** The threads holding this lock for reading, oldest first. */
+	private ArrayList<KThread> readers = new ArrayList<KThread>();
+
+	private int waitingReaders = 0;
+
+	private int waitingWriters = 0;
+
+	private ThreadQueue readerQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+
+	private ThreadQueue writerQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
+}
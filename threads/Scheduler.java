@@ -50,6 +50,55 @@ public abstract class Scheduler {
 	 */
 	public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+	/**
+	 * Allocate the queue of threads that are ready to run on the processor.
+	 * This is called once, by the constructor of the first <tt>KThread</tt>.
+	 * A scheduler that needs to look at the ready set, for example to decide
+	 * whether to preempt the current thread, can override this method to keep
+	 * a reference to the queue it returns.
+	 * 
+	 * @return a new thread queue that does not transfer priority.
+	 */
+	public ThreadQueue newReadyQueue() {
+		return newThreadQueue(false);
+	}
+
+	/**
+	 * Notify this scheduler that the specified thread is about to run on the
+	 * processor. Called by <tt>KThread.restoreState()</tt> with interrupts
+	 * disabled.
+	 * 
+	 * @param thread the thread that is about to run.
+	 */
+	public void runningThread(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Notify this scheduler that the specified thread is giving up the
+	 * processor. Called by <tt>KThread.saveState()</tt> with interrupts
+	 * disabled.
+	 * 
+	 * @param thread the thread that is giving up the processor.
+	 * @param blocked <tt>true</tt> if the thread is going to sleep, as opposed
+	 * to yielding or finishing.
+	 */
+	public void stoppingThread(KThread thread, boolean blocked) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Decide whether the current thread should give up the processor. Called
+	 * by the timer interrupt handler with interrupts disabled. The default is
+	 * to preempt the current thread on every timer interrupt.
+	 * 
+	 * @return <tt>true</tt> if the current thread should yield.
+	 */
+	public boolean preemptCurrentThread() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return true;
+	}
+
 	/**
 	 * Get the priority of the specified thread. Must be called with interrupts
 	 * disabled.
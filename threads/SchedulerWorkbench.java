@@ -0,0 +1,241 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.StringTokenizer;
+
+/**
+ * A kernel that measures the scheduler it is running with. Instead of
+ * running user programs, it runs a series of synthetic workloads made of
+ * CPU-bound, I/O-bound and lock-contending threads, and prints one line of
+ * CSV per workload.
+ *
+ * <p>
+ * Each workload (a <i>mix</i>) is written <tt>cpu/io/lock</tt>, giving the
+ * number of threads of each kind. The mixes to run are listed in the
+ * <tt>SchedulerWorkbench.mixes</tt> configuration key, separated by commas.
+ * Each mix runs for <tt>SchedulerWorkbench.duration</tt> ticks.
+ *
+ * <ul>
+ * <li>A CPU-bound thread runs bursts of <tt>SchedulerWorkbench.cpuBurst</tt>
+ * ticks back to back.
+ * <li>An I/O-bound thread runs a burst of <tt>SchedulerWorkbench.ioBurst</tt>
+ * ticks, then sleeps in the alarm for <tt>SchedulerWorkbench.ioDelay</tt>
+ * ticks, as if waiting for a device.
+ * <li>A lock-contending thread holds a lock shared by all lock-contending
+ * threads for a burst of <tt>SchedulerWorkbench.lockHold</tt> ticks, then runs
+ * the same amount outside the lock.
+ * </ul>
+ *
+ * <p>
+ * The columns are: the scheduler's class name; the mix; the number of
+ * threads; the ticks the mix ran for; the number of bursts completed; the
+ * bursts completed per 1000 ticks; the 50th, 90th and 99th percentile
+ * response time of the I/O-bound threads, from the moment their sleep ended
+ * to the moment they ran again; Jain's fairness index over the work done by
+ * the CPU-bound threads (1 is perfectly fair); and the number of context
+ * switches. All times are in simulated ticks.
+ *
+ * <p>
+ * Since the scheduler is chosen when Nachos starts, each scheduler needs a
+ * separate run. <tt>bench/schedbench</tt> runs every scheduler in turn and
+ * collects the results into one table.
+ */
+public class SchedulerWorkbench extends ThreadedKernel {
+	/**
+	 * Allocate a new scheduler workbench.
+	 */
+	public SchedulerWorkbench() {
+		super();
+	}
+
+	/**
+	 * The workbench has no self test.
+	 */
+	public void selfTest() {
+	}
+
+	/**
+	 * Run every configured mix, printing a CSV header followed by one row
+	 * per mix.
+	 */
+	public void run() {
+		duration = Config.getInteger("SchedulerWorkbench.duration", 200000);
+		cpuBurst = Config.getInteger("SchedulerWorkbench.cpuBurst", 1000);
+		ioBurst = Config.getInteger("SchedulerWorkbench.ioBurst", 100);
+		ioDelay = Config.getInteger("SchedulerWorkbench.ioDelay", 2000);
+		lockHold = Config.getInteger("SchedulerWorkbench.lockHold", 300);
+
+		System.out.println(header);
+
+		StringTokenizer mixes = new StringTokenizer(Config.getString(
+				"SchedulerWorkbench.mixes", defaultMixes), ", ");
+		while (mixes.hasMoreTokens())
+			runMix(mixes.nextToken());
+	}
+
+	private void runMix(String mix) {
+		int[] counts = new int[3];
+
+		StringTokenizer st = new StringTokenizer(mix, "/");
+		Lib.assertTrue(st.countTokens() == 3, "bad workbench mix: " + mix);
+		for (int i = 0; i < counts.length; i++) {
+			try {
+				counts[i] = Integer.parseInt(st.nextToken());
+			}
+			catch (NumberFormatException e) {
+				Lib.assertNotReached("bad workbench mix: " + mix);
+			}
+		}
+
+		int numThreads = counts[0] + counts[1] + counts[2];
+		Lib.assertTrue(numThreads > 0, "empty workbench mix: " + mix);
+
+		Worker[] workers = new Worker[numThreads];
+		Lock lock = new Lock();
+
+		long start = Machine.timer().getTime();
+		long end = start + duration;
+		long switches = KThread.getNumContextSwitches();
+
+		for (int i = 0; i < numThreads; i++) {
+			int kind = (i < counts[0] ? kindCPU
+					: (i < counts[0] + counts[1] ? kindIO : kindLock));
+			workers[i] = new Worker(kind, end, lock);
+		}
+
+		KThread[] threads = new KThread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread(workers[i]).setName("workbench " + i);
+			threads[i].fork();
+		}
+		for (int i = 0; i < numThreads; i++)
+			threads[i].join();
+
+		long ticks = Machine.timer().getTime() - start;
+		switches = KThread.getNumContextSwitches() - switches;
+
+		long work = 0;
+		int numResponses = 0;
+		for (int i = 0; i < numThreads; i++) {
+			work += workers[i].work;
+			numResponses += workers[i].numResponses;
+		}
+
+		long[] responses = new long[numResponses];
+		numResponses = 0;
+		for (int i = 0; i < numThreads; i++) {
+			System.arraycopy(workers[i].responses, 0, responses, numResponses,
+					workers[i].numResponses);
+			numResponses += workers[i].numResponses;
+		}
+		Arrays.sort(responses);
+
+		double sum = 0, sumSquares = 0;
+		for (int i = 0; i < counts[0]; i++) {
+			sum += workers[i].work;
+			sumSquares += (double) workers[i].work * workers[i].work;
+		}
+
+		System.out.println(scheduler.getClass().getName() + "," + mix + ","
+				+ numThreads + "," + ticks + "," + work + ","
+				+ (work * 1000.0 / ticks) + "," + percentile(responses, 50)
+				+ "," + percentile(responses, 90) + ","
+				+ percentile(responses, 99) + ","
+				+ (sumSquares == 0 ? "" : "" + sum * sum / (counts[0] * sumSquares))
+				+ "," + switches);
+	}
+
+	/**
+	 * Return the specified nearest-rank percentile of a sorted array, or an
+	 * empty string if the array is empty.
+	 */
+	private static String percentile(long[] sorted, int p) {
+		if (sorted.length == 0)
+			return "";
+
+		int rank = (p * sorted.length + 99) / 100;
+		return "" + sorted[Math.max(rank, 1) - 1];
+	}
+
+	/**
+	 * Use the processor for the specified number of ticks. Time only advances
+	 * in the kernel when interrupts are enabled, by <tt>Stats.KernelTick</tt>
+	 * each time, so this repeatedly disables and re-enables them. That also
+	 * lets the timer preempt the current thread, so the burst may take longer
+	 * than <i>ticks</i> to finish.
+	 */
+	static void spin(long ticks) {
+		for (long i = 0; i < ticks; i += Stats.KernelTick) {
+			Machine.interrupt().disable();
+			Machine.interrupt().enable();
+		}
+	}
+
+	private class Worker implements Runnable {
+		Worker(int kind, long end, Lock lock) {
+			this.kind = kind;
+			this.end = end;
+			this.lock = lock;
+		}
+
+		public void run() {
+			while (Machine.timer().getTime() < end) {
+				switch (kind) {
+				case kindCPU:
+					spin(cpuBurst);
+					break;
+
+				case kindIO:
+					spin(ioBurst);
+
+					long due = Machine.timer().getTime() + ioDelay;
+					alarm.waitUntil(ioDelay);
+					addResponse(Machine.timer().getTime() - due);
+					break;
+
+				case kindLock:
+					lock.acquire();
+					spin(lockHold);
+					lock.release();
+					spin(lockHold);
+					break;
+				}
+
+				work++;
+			}
+		}
+
+		private void addResponse(long response) {
+			if (numResponses == responses.length) {
+				long[] larger = new long[responses.length * 2];
+				System.arraycopy(responses, 0, larger, 0, numResponses);
+				responses = larger;
+			}
+
+			responses[numResponses++] = response;
+		}
+
+		private int kind;
+
+		private long end;
+
+		private Lock lock;
+
+		long work = 0;
+
+		long[] responses = new long[64];
+
+		int numResponses = 0;
+	}
+
+	private int duration, cpuBurst, ioBurst, ioDelay, lockHold;
+
+	private static final int kindCPU = 0, kindIO = 1, kindLock = 2;
+
+	private static final String defaultMixes = "4/0/0,2/4/0,2/2/2,0/4/4";
+
+	private static final String header = "scheduler,mix,threads,ticks,work,"
+			+ "throughput,p50,p90,p99,fairness,switches";
+}
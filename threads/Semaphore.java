@@ -29,6 +29,23 @@ public class Semaphore {
 	 */
 	public Semaphore(int initialValue) {
 		value = initialValue;
+
+		if (LockStat.enabled)
+			stat = LockStat.forNewObject("Semaphore");
+	}
+
+	/**
+	 * Give this semaphore a name to be used in place of its creation site when
+	 * contention is profiled.
+	 *
+	 * @param name the name to use.
+	 * @return this semaphore.
+	 */
+	public Semaphore setName(String name) {
+		if (LockStat.enabled)
+			stat = LockStat.rename(stat, "Semaphore", name);
+
+		return this;
 	}
 
 	/**
@@ -39,10 +56,24 @@ public class Semaphore {
 		boolean intStatus = Machine.interrupt().disable();
 
 		if (value == 0) {
+			long waitStart = 0;
+			if (LockStat.enabled && stat != null) {
+				stat.acquire(++numWaiting);
+				waitStart = Machine.timer().getTime();
+			}
+
 			waitQueue.waitForAccess(KThread.currentThread());
 			KThread.sleep();
+
+			if (LockStat.enabled && stat != null) {
+				numWaiting--;
+				stat.waited(Machine.timer().getTime() - waitStart);
+			}
 		}
 		else {
+			if (LockStat.enabled && stat != null)
+				stat.acquire(0);
+
 			value--;
 		}
 
@@ -104,6 +135,12 @@ public class Semaphore {
 */
 	private int value;
 
+	/** Contention statistics, if profiling is enabled. */
+	private LockStat stat = null;
+
+	/** The number of threads waiting, kept only when profiling. */
+	private int numWaiting = 0;
+
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(false);
 }
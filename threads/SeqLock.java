@@ -0,0 +1,84 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>sequence lock</i> protects a small structure that is read very often
+ * and written rarely, such as a pair of counters. Writers exclude each other
+ * with an ordinary lock, but readers take no lock at all: they read the
+ * structure optimistically and retry if a writer changed it meanwhile.
+ *
+ * <p>
+ * A reader does:
+ *
+ * <pre>
+ * int seq;
+ * do {
+ * 	seq = seqLock.readBegin();
+ * 	// copy the fields
+ * } while (seqLock.readRetry(seq));
+ * </pre>
+ *
+ * <p>
+ * and a writer brackets its changes with <tt>writeBegin()</tt> and
+ * <tt>writeEnd()</tt>. The sequence number is odd while a write is in
+ * progress. Since Nachos only switches threads when interrupts are enabled
+ * or a thread blocks, a reader can only see an odd number if a writer was
+ * preempted in the middle of its update; the reader then yields to let it
+ * finish, rather than spinning. Readers must only copy fields inside the
+ * read section, never block or follow pointers that a writer may free.
+ */
+public class SeqLock {
+	/**
+	 * Allocate a new sequence lock.
+	 */
+	public SeqLock() {
+	}
+
+	/**
+	 * Start a read section.
+	 *
+	 * @return the sequence number to pass to <tt>readRetry()</tt>.
+	 */
+	public int readBegin() {
+		int seq;
+		while (((seq = sequence) & 1) != 0)
+			KThread.yield();
+
+		return seq;
+	}
+
+	/**
+	 * End a read section.
+	 *
+	 * @param seq the value returned by the matching <tt>readBegin()</tt>.
+	 * @return <tt>true</tt> if a writer changed the structure during the read
+	 * section, in which case the values read must be discarded and the read
+	 * section repeated.
+	 */
+	public boolean readRetry(int seq) {
+		return sequence != seq;
+	}
+
+	/**
+	 * Start a write section, waiting for any other writer to finish first.
+	 */
+	public void writeBegin() {
+		writeLock.acquire();
+		sequence++;
+	}
+
+	/**
+	 * End a write section.
+	 */
+	public void writeEnd() {
+		Lib.assertTrue(writeLock.isHeldByCurrentThread());
+
+		sequence++;
+		writeLock.release();
+	}
+
+	private int sequence = 0;
+
+	private Lock writeLock = new Lock();
+}
@@ -0,0 +1,430 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * A scheduler that chooses threads using stride scheduling.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread, and gives each thread access in proportion to its share
+ * of the tickets. Instead of holding a random lottery, each thread has a
+ * <i>stride</i> inversely proportional to its tickets and a <i>pass</i>
+ * value. The next thread to be dequeued is always the waiting thread with the
+ * smallest pass, whose pass is then advanced by its stride. This gives the
+ * same long-run proportions as a lottery, but with an error that is bounded
+ * by a single allocation instead of growing with the square root of the
+ * number of allocations.
+ *
+ * <p>
+ * A thread that becomes ready has its pass raised to at least the pass of the
+ * last thread dequeued from the ready queue, so that a thread which slept for
+ * a long time cannot monopolize the processor when it returns.
+ *
+ * <p>
+ * Only the ready queue keeps a thread's pass from one wait to the next.
+ * Waiting for a lock or a join starts one stride after the pass of the last
+ * thread dequeued from that queue, so threads with more tickets still go
+ * first, but contending for a lock does not move a thread in the ready queue.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler partially solves the priority
+ * inversion problem by transferring tickets through locks and joins. Tickets
+ * add, so a thread holding a lock runs with its own tickets plus the tickets
+ * of every thread waiting for the lock.
+ */
+public class StrideScheduler extends PriorityScheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 *
+	 * @param transferPriority <tt>true</tt> if this queue should transfer
+	 * tickets from waiting threads to the owning thread.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority, false);
+	}
+
+	/**
+	 * Allocate the ready queue, the only queue in which a thread's pass
+	 * carries over from one wait to the next.
+	 *
+	 * @return the new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		return new StrideQueue(false, true);
+	}
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	protected int getPriorityMinimum() {
+		return priorityMinimum;
+	}
+
+	protected int getPriorityMaximum() {
+		return priorityMaximum;
+	}
+
+	/**
+	 * The stride of a thread holding a single ticket. The stride of a thread
+	 * holding <i>n</i> tickets is <tt>stride1 / n</tt>.
+	 */
+	public static final long stride1 = 1L << 32;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected StrideThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new StrideThreadState(thread);
+
+		return (StrideThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps waiting threads in a min-heap ordered
+	 * by pass.
+	 */
+	protected class StrideQueue extends ThreadQueue {
+		StrideQueue(boolean transferPriority, boolean isReadyQueue) {
+			this.transferPriority = transferPriority;
+			this.isReadyQueue = isReadyQueue;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getThreadState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			StrideThreadState next = waitHeap.poll();
+			if (next == null) {
+				setHolder(null);
+				return null;
+			}
+
+			next.waitingOn = null;
+			globalPass = next.pass;
+			next.acquire(this);
+			if (isReadyQueue)
+				next.readyPass = next.pass + next.getStride();
+
+			return next.thread;
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * without modifying the state of this queue.
+		 *
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
+		protected StrideThreadState pickNextThread() {
+			return waitHeap.peek();
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Iterator<StrideThreadState> i = waitHeap.iterator(); i
+					.hasNext();) {
+				StrideThreadState state = i.next();
+				System.out.print(state.thread + " (pass " + state.pass + ") ");
+			}
+		}
+
+		/**
+		 * Return the total effective tickets of the threads waiting on this
+		 * queue.
+		 *
+		 * @return the sum of the waiting threads' effective tickets.
+		 */
+		long getWaitingTickets() {
+			long tickets = 0;
+
+			for (Iterator<StrideThreadState> i = waitHeap.iterator(); i
+					.hasNext();)
+				tickets += i.next().getEffectiveTickets();
+
+			return tickets;
+		}
+
+		/**
+		 * Give this queue to the specified thread, taking it away from the
+		 * previous holder.
+		 *
+		 * @param state the new holder, or <tt>null</tt> if nobody holds the
+		 * queue.
+		 */
+		void setHolder(StrideThreadState state) {
+			if (!transferPriority)
+				return;
+
+			if (holder != null)
+				holder.owned.remove(this);
+
+			holder = state;
+
+			if (holder != null)
+				holder.owned.add(this);
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/** <tt>true</tt> if this is the ready queue. */
+		boolean isReadyQueue;
+
+		/** The pass of the thread most recently dequeued. */
+		long globalPass = 0;
+
+		/** The number of threads ever enqueued, used to break pass ties. */
+		long numEnqueued = 0;
+
+		private StrideThreadState holder = null;
+
+		private java.util.PriorityQueue<StrideThreadState> waitHeap = new java.util.PriorityQueue<StrideThreadState>(
+				8, passComparator);
+	}
+
+	/**
+	 * The scheduling state of a thread under stride scheduling. The inherited
+	 * priority holds the thread's own tickets.
+	 */
+	protected class StrideThreadState extends ThreadState {
+		/**
+		 * Allocate a new <tt>StrideThreadState</tt> object and associate it
+		 * with the specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public StrideThreadState(KThread thread) {
+			super(thread);
+		}
+
+		/**
+		 * Return the effective tickets of the associated thread, saturated to
+		 * fit in an <tt>int</tt>.
+		 *
+		 * @return the effective tickets of the associated thread.
+		 */
+		public int getEffectivePriority() {
+			return (int) Math.min(getEffectiveTickets(), priorityMaximum);
+		}
+
+		/**
+		 * Return this thread's own tickets plus the effective tickets of every
+		 * thread waiting on a queue this thread holds.
+		 *
+		 * @return the effective tickets of the associated thread.
+		 */
+		long getEffectiveTickets() {
+			long tickets = priority;
+
+			for (Iterator<StrideQueue> i = owned.iterator(); i.hasNext();)
+				tickets += i.next().getWaitingTickets();
+
+			return tickets;
+		}
+
+		/**
+		 * Return the amount by which this thread's pass advances each time it
+		 * is dequeued.
+		 *
+		 * @return the stride of the associated thread.
+		 */
+		long getStride() {
+			return Math.max(stride1 / getEffectiveTickets(), 1);
+		}
+
+		/**
+		 * Called when the associated thread starts waiting on the specified
+		 * queue. In the ready queue, raises this thread's pass to the queue's
+		 * global pass, so that a thread joining mid-run is treated as if it had
+		 * just been dequeued. In any other queue, the thread starts one stride
+		 * after the global pass.
+		 *
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 */
+		public void waitForAccess(StrideQueue waitQueue) {
+			Lib.assertTrue(waitingOn == null);
+
+			if (waitQueue.isReadyQueue) {
+				if (readyPass < waitQueue.globalPass)
+					readyPass = waitQueue.globalPass;
+				pass = readyPass;
+			}
+			else {
+				pass = waitQueue.globalPass + getStride();
+			}
+
+			sequence = waitQueue.numEnqueued++;
+			waitingOn = waitQueue;
+			waitQueue.waitHeap.add(this);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>.
+		 *
+		 * @param waitQueue the queue the associated thread now holds.
+		 */
+		public void acquire(StrideQueue waitQueue) {
+			waitQueue.setHolder(this);
+		}
+
+		/** The queues held by this thread that transfer tickets to it. */
+		HashSet<StrideQueue> owned = new HashSet<StrideQueue>();
+
+		/** The queue this thread is waiting on, if any. */
+		StrideQueue waitingOn = null;
+
+		/**
+		 * The virtual time at which this thread should be dequeued from the
+		 * queue it is waiting on.
+		 */
+		long pass = 0;
+
+		/** The virtual time at which this thread should next run. */
+		long readyPass = 0;
+
+		/** The order in which this thread joined its current queue. */
+		long sequence = 0;
+	}
+
+	private static final Comparator<StrideThreadState> passComparator = new Comparator<StrideThreadState>() {
+		public int compare(StrideThreadState a, StrideThreadState b) {
+			if (a.pass != b.pass)
+				return a.pass < b.pass ? -1 : 1;
+			if (a.sequence != b.sequence)
+				return a.sequence < b.sequence ? -1 : 1;
+			return 0;
+		}
+	};
+
+	private static class ShareTest implements Runnable {
+		ShareTest(long deadline) {
+			this.deadline = deadline;
+		}
+
+		public void run() {
+			while (Machine.timer().getTime() < deadline) {
+				count++;
+				KThread.yield();
+			}
+		}
+
+		private long deadline;
+
+		private int count = 0;
+	}
+
+	/**
+	 * Test that this module is working. Runs threads holding 1, 2, 3 and 4
+	 * tickets against each other, reports how many times each was dispatched,
+	 * and checks that their shares are close to 1:2:3:4. This test should
+	 * only be run when <tt>ThreadedKernel.scheduler</tt> is a
+	 * <tt>StrideScheduler</tt>.
+	 */
+	public static void selfTest() {
+		Lib.assertTrue(ThreadedKernel.scheduler instanceof StrideScheduler);
+
+		int numThreads = 4;
+		long start = Machine.timer().getTime();
+		long deadline = start + 200000;
+
+		ShareTest[] tests = new ShareTest[numThreads];
+		KThread[] threads = new KThread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			tests[i] = new ShareTest(deadline);
+			threads[i] = new KThread(tests[i]).setName("stride " + (i + 1));
+
+			boolean intStatus = Machine.interrupt().disable();
+			ThreadedKernel.scheduler.setPriority(threads[i], i + 1);
+			Machine.interrupt().restore(intStatus);
+		}
+
+		for (int i = 0; i < numThreads; i++)
+			threads[i].fork();
+		for (int i = 0; i < numThreads; i++)
+			threads[i].join();
+
+		long total = 0;
+		for (int i = 0; i < numThreads; i++)
+			total += tests[i].count;
+
+		int totalTickets = numThreads * (numThreads + 1) / 2;
+		double maxError = 0;
+		for (int i = 0; i < numThreads; i++) {
+			double share = (double) tests[i].count / total;
+			double ideal = (double) (i + 1) / totalTickets;
+			maxError = Math.max(maxError, Math.abs(share - ideal) / ideal);
+
+			System.out.println("StrideScheduler: " + (i + 1) + " tickets, "
+					+ tests[i].count + " dispatches, share " + share);
+		}
+
+		long ticks = Machine.timer().getTime() - start;
+		System.out.println("StrideScheduler: " + total + " dispatches in "
+				+ ticks + " ticks, max relative share error " + maxError);
+
+		Lib.assertTrue(maxError < 0.05, "stride shares are not proportional");
+
+		// contending for a lock does not move a thread in the ready queue
+		StrideScheduler scheduler = (StrideScheduler) ThreadedKernel.scheduler;
+		boolean intStatus = Machine.interrupt().disable();
+
+		StrideQueue ready = scheduler.new StrideQueue(false, true);
+		StrideQueue lock = scheduler.new StrideQueue(true, false);
+		KThread thread = new KThread().setName("stride lock test");
+		StrideThreadState state = scheduler.getThreadState(thread);
+
+		ready.waitForAccess(thread);
+		ready.nextThread();
+		long readyPass = state.readyPass;
+
+		for (int i = 0; i < 10; i++) {
+			lock.waitForAccess(thread);
+			Lib.assertTrue(lock.nextThread() == thread);
+		}
+		lock.nextThread();
+
+		ready.waitForAccess(thread);
+		Lib.assertTrue(state.pass == readyPass,
+				"lock contention moved a thread in the ready queue");
+		ready.nextThread();
+
+		Machine.interrupt().restore(intStatus);
+	}
+}
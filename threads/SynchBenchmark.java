@@ -0,0 +1,387 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.StringTokenizer;
+
+/**
+ * A kernel that measures the synchronization primitives. Instead of running
+ * user programs, it runs each benchmark listed in the
+ * <tt>SynchBenchmark.benchmarks</tt> configuration key (comma-separated) and
+ * prints one line of CSV per benchmark.
+ *
+ * <p>
+ * The columns are: the scheduler's class name; the benchmark; the number of
+ * threads; the number of operations completed; the simulated ticks taken;
+ * operations per 1000 ticks; the real time taken, in milliseconds;
+ * operations per real second; and the number of context switches.
+ *
+ * <p>
+ * The benchmarks are:
+ * <ul>
+ * <li><tt>communicator</tt>: <tt>SynchBenchmark.producers</tt> threads speak
+ * <tt>SynchBenchmark.words</tt> words in total to
+ * <tt>SynchBenchmark.consumers</tt> threads through one
+ * <tt>Communicator</tt>. An operation is one word.
+ * <li><tt>channel</tt>: the same, through a <tt>Channel</tt> holding
+ * <tt>SynchBenchmark.capacity</tt> words, one word per call.
+ * <li><tt>channelBatch</tt>: the same, using <tt>speakAll()</tt> and
+ * <tt>listenBatch()</tt> with <tt>SynchBenchmark.batch</tt> words per call.
+ * <li><tt>mutex</tt>, <tt>rwlock</tt>: reader threads each take a lock
+ * <tt>SynchBenchmark.readOps</tt> times, while
+ * <tt>SynchBenchmark.writers</tt> writer threads each take it
+ * <tt>SynchBenchmark.writeOps</tt> times, pausing for
+ * <tt>SynchBenchmark.writePause</tt> ticks between writes. Each holds the
+ * lock while sleeping for <tt>SynchBenchmark.holdTicks</tt> ticks, as if
+ * waiting for a device. The lock is a <tt>Lock</tt> or a
+ * <tt>ReadWriteLock</tt>. There is one row for each reader count in
+ * <tt>SynchBenchmark.readers</tt> (comma-separated), to show how readers
+ * scale. An operation is one read or write.
+ * <li><tt>seqlock</tt>: the same threads share a pair of counters under a
+ * <tt>SeqLock</tt>. Writers increment both, using the processor for
+ * <tt>holdTicks</tt> ticks in between, and readers check that they always
+ * see the two equal.
+ * <li><tt>forkPerTask</tt>: run <tt>SynchBenchmark.tasks</tt> short tasks,
+ * each using the processor for <tt>SynchBenchmark.taskTicks</tt> ticks,
+ * forking a new thread for each. At most <tt>SynchBenchmark.poolWorkers</tt>
+ * run at once. An operation is one task.
+ * <li><tt>threadPool</tt>: the same tasks, submitted to a
+ * <tt>KThreadPool</tt> of <tt>SynchBenchmark.poolWorkers</tt> workers.
+ * </ul>
+ *
+ * <p>
+ * Run it with <tt>nachos -[] bench/synchbench.conf</tt>, or run
+ * <tt>bench/synchbench</tt> to compare schedulers.
+ */
+public class SynchBenchmark extends ThreadedKernel {
+	/**
+	 * Allocate a new synchronization benchmark.
+	 */
+	public SynchBenchmark() {
+		super();
+	}
+
+	/**
+	 * The benchmark has no self test.
+	 */
+	public void selfTest() {
+	}
+
+	/**
+	 * Run every configured benchmark, printing a CSV header followed by one
+	 * row per benchmark.
+	 */
+	public void run() {
+		producers = Config.getInteger("SynchBenchmark.producers", 2);
+		consumers = Config.getInteger("SynchBenchmark.consumers", 2);
+		words = Config.getInteger("SynchBenchmark.words", 20000);
+		capacity = Config.getInteger("SynchBenchmark.capacity", 64);
+		batch = Config.getInteger("SynchBenchmark.batch", 16);
+		writers = Config.getInteger("SynchBenchmark.writers", 1);
+		readOps = Config.getInteger("SynchBenchmark.readOps", 200);
+		writeOps = Config.getInteger("SynchBenchmark.writeOps", 20);
+		holdTicks = Config.getInteger("SynchBenchmark.holdTicks", 200);
+		writePause = Config.getInteger("SynchBenchmark.writePause", 2000);
+		readers = Config.getString("SynchBenchmark.readers", defaultReaders);
+		tasks = Config.getInteger("SynchBenchmark.tasks", 2000);
+		taskTicks = Config.getInteger("SynchBenchmark.taskTicks", 100);
+		poolWorkers = Config.getInteger("SynchBenchmark.poolWorkers", 4);
+
+		System.out.println(header);
+
+		StringTokenizer benchmarks = new StringTokenizer(Config.getString(
+				"SynchBenchmark.benchmarks", defaultBenchmarks), ", ");
+		while (benchmarks.hasMoreTokens())
+			runBenchmark(benchmarks.nextToken());
+	}
+
+	private void runBenchmark(String name) {
+		if (name.equals("mutex") || name.equals("rwlock")
+				|| name.equals("seqlock")) {
+			StringTokenizer counts = new StringTokenizer(readers, ", ");
+			while (counts.hasMoreTokens()) {
+				int numReaders = Integer.parseInt(counts.nextToken());
+
+				startMeasuring();
+				int threads = runReaders(name, numReaders);
+				report(name + "/" + numReaders + "r", threads, (long) numReaders
+						* readOps + (long) writers * writeOps);
+			}
+			return;
+		}
+
+		startMeasuring();
+
+		int threads;
+		long ops;
+
+		if (name.equals("communicator")) {
+			threads = runWords(new Communicator(), null, 1);
+			ops = words;
+		}
+		else if (name.equals("channel")) {
+			threads = runWords(null, new Channel(capacity), 1);
+			ops = words;
+		}
+		else if (name.equals("channelBatch")) {
+			threads = runWords(null, new Channel(capacity), batch);
+			ops = words;
+		}
+		else if (name.equals("forkPerTask")) {
+			threads = runTasks(false);
+			ops = tasks;
+		}
+		else if (name.equals("threadPool")) {
+			threads = runTasks(true);
+			ops = tasks;
+		}
+		else {
+			Lib.assertNotReached("unknown benchmark: " + name);
+			return;
+		}
+
+		report(name, threads, ops);
+	}
+
+	private void startMeasuring() {
+		startTicks = Machine.timer().getTime();
+		startNanos = System.nanoTime();
+		startSwitches = KThread.getNumContextSwitches();
+	}
+
+	private void report(String name, int threads, long ops) {
+		long ticks = Machine.timer().getTime() - startTicks;
+		double millis = (System.nanoTime() - startNanos) / 1e6;
+		long switches = KThread.getNumContextSwitches() - startSwitches;
+
+		System.out.println(scheduler.getClass().getName() + "," + name + ","
+				+ threads + "," + ops + "," + ticks + ","
+				+ (ops * 1000.0 / ticks) + "," + millis + ","
+				+ (ops * 1000.0 / millis) + "," + switches);
+	}
+
+	/**
+	 * Run the reader and writer threads of the <tt>mutex</tt>,
+	 * <tt>rwlock</tt> or <tt>seqlock</tt> benchmark.
+	 *
+	 * @return the number of threads used.
+	 */
+	private int runReaders(String kind, int numReaders) {
+		final int type = (kind.equals("mutex") ? typeMutex : (kind
+				.equals("rwlock") ? typeReadWrite : typeSeq));
+		final Lock mutex = new Lock();
+		final ReadWriteLock rwLock = new ReadWriteLock();
+		final SeqLock seqLock = new SeqLock();
+		final int[] pair = new int[2];
+
+		KThread[] threads = new KThread[numReaders + writers];
+
+		for (int i = 0; i < numReaders; i++) {
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < readOps; j++) {
+						switch (type) {
+						case typeMutex:
+							mutex.acquire();
+							alarm.waitUntil(holdTicks);
+							mutex.release();
+							break;
+
+						case typeReadWrite:
+							rwLock.acquireRead();
+							alarm.waitUntil(holdTicks);
+							rwLock.releaseRead();
+							break;
+
+						case typeSeq:
+							int seq, first, second;
+							do {
+								seq = seqLock.readBegin();
+								first = pair[0];
+								second = pair[1];
+							} while (seqLock.readRetry(seq));
+							Lib.assertTrue(first == second, "torn seqlock read");
+							KThread.yield();
+							break;
+						}
+					}
+				}
+			}).setName("reader " + i);
+		}
+
+		for (int i = 0; i < writers; i++) {
+			threads[numReaders + i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < writeOps; j++) {
+						switch (type) {
+						case typeMutex:
+							mutex.acquire();
+							alarm.waitUntil(holdTicks);
+							mutex.release();
+							break;
+
+						case typeReadWrite:
+							rwLock.acquireWrite();
+							alarm.waitUntil(holdTicks);
+							rwLock.releaseWrite();
+							break;
+
+						case typeSeq:
+							seqLock.writeBegin();
+							pair[0]++;
+							SchedulerWorkbench.spin(holdTicks);
+							pair[1]++;
+							seqLock.writeEnd();
+							break;
+						}
+
+						alarm.waitUntil(writePause);
+					}
+				}
+			}).setName("writer " + i);
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].fork();
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		return threads.length;
+	}
+
+	/**
+	 * Move <tt>words</tt> words from the producers to the consumers, through
+	 * either a communicator or a channel, <i>perCall</i> words at a time.
+	 *
+	 * @return the number of threads used.
+	 */
+	private int runWords(final Communicator communicator,
+			final Channel channel, final int perCall) {
+		KThread[] threads = new KThread[producers + consumers];
+
+		for (int i = 0; i < producers; i++) {
+			final int count = share(words, producers, i);
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					int[] buffer = new int[perCall];
+					int sent = 0;
+					while (sent < count) {
+						if (communicator != null) {
+							communicator.speak(sent++);
+						}
+						else if (perCall == 1) {
+							channel.speak(sent++);
+						}
+						else {
+							int n = Math.min(perCall, count - sent);
+							if (n < buffer.length)
+								buffer = new int[n];
+							for (int j = 0; j < n; j++)
+								buffer[j] = sent++;
+							channel.speakAll(buffer);
+						}
+					}
+				}
+			}).setName("producer " + i);
+		}
+
+		for (int i = 0; i < consumers; i++) {
+			final int count = share(words, consumers, i);
+			threads[producers + i] = new KThread(new Runnable() {
+				public void run() {
+					int[] buffer = new int[perCall];
+					int received = 0;
+					while (received < count) {
+						if (communicator != null) {
+							communicator.listen();
+							received++;
+						}
+						else if (perCall == 1) {
+							channel.listen();
+							received++;
+						}
+						else {
+							// never take words meant for another consumer
+							int n = Math.min(perCall, count - received);
+							if (n < buffer.length)
+								buffer = new int[n];
+							received += channel.listenBatch(buffer);
+						}
+					}
+				}
+			}).setName("consumer " + i);
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].fork();
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		return threads.length;
+	}
+
+	/**
+	 * Run <tt>tasks</tt> short tasks, <tt>poolWorkers</tt> at a time, either
+	 * in a thread pool or in a new thread each.
+	 *
+	 * @return the number of threads created.
+	 */
+	private int runTasks(boolean usePool) {
+		Runnable task = new Runnable() {
+			public void run() {
+				SchedulerWorkbench.spin(taskTicks);
+			}
+		};
+
+		if (usePool) {
+			KThreadPool pool = new KThreadPool(poolWorkers);
+			KFuture<?>[] futures = new KFuture<?>[tasks];
+			for (int i = 0; i < tasks; i++)
+				futures[i] = pool.submit(task);
+			for (int i = 0; i < tasks; i++)
+				futures[i].join();
+			pool.shutdown();
+			return poolWorkers;
+		}
+
+		KThread[] threads = new KThread[poolWorkers];
+		for (int i = 0; i < tasks; i += poolWorkers) {
+			int n = Math.min(poolWorkers, tasks - i);
+			for (int j = 0; j < n; j++) {
+				threads[j] = new KThread(task).setName("task " + (i + j));
+				threads[j].fork();
+			}
+			for (int j = 0; j < n; j++)
+				threads[j].join();
+		}
+		return tasks;
+	}
+
+	/**
+	 * Return how many of <i>total</i> items the <i>i</i>th of <i>n</i>
+	 * threads should handle.
+	 */
+	private static int share(int total, int n, int i) {
+		return total / n + (i < total % n ? 1 : 0);
+	}
+
+	private int producers, consumers, words, capacity, batch;
+
+	private int writers, readOps, writeOps, holdTicks, writePause;
+
+	private String readers;
+
+	private int tasks, taskTicks, poolWorkers;
+
+	private long startTicks, startNanos, startSwitches;
+
+	private static final int typeMutex = 0, typeReadWrite = 1, typeSeq = 2;
+
+	private static final String defaultBenchmarks = "communicator,channel,"
+			+ "channelBatch,mutex,rwlock,seqlock,forkPerTask,threadPool";
+
+	private static final String defaultReaders = "1,2,4,8";
+
+	private static final String header = "scheduler,benchmark,threads,ops,ticks,"
+			+ "opsPerKiloTick,millis,opsPerSecond,switches";
+}
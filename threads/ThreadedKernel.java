@@ -65,7 +65,16 @@ public class ThreadedKernel extends Kernel {
 		// }
 
 		// Alarm.selfTest();
+		// Condition2.selfTest();
 		// Communicator.selfTest();
+		// Channel.selfTest();
+		// ReadWriteLock.selfTest();
+		// KThreadPool.selfTest();
+		// KFuture.selfTest();
+		// Barrier.selfTest();
+		// LockStat.selfTest();
+
+		// StrideScheduler.selfTest();
 	}
 	
 
@@ -81,9 +90,16 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (Lib.test(dbgAlarm))
+			alarm.printLatencyHistogram();
+		if (LockStat.enabled)
+			LockStat.print();
+
 		Machine.halt();
 	}
 
+	private static final char dbgAlarm = 'w';
+
 	/** Globally accessible reference to the scheduler. */
 	public static Scheduler scheduler = null;
 
@@ -107,4 +123,28 @@ public class ThreadedKernel extends Kernel {
 	private static Rider dummy6 = null;
 
 	private static ElevatorController dummy7 = null;
+
+	private static StrideScheduler dummy8 = null;
+
+	private static MultiLevelFeedbackScheduler dummy9 = null;
+
+	private static CompletelyFairScheduler dummy10 = null;
+
+	private static EarliestDeadlineScheduler dummy11 = null;
+
+	private static SchedulerWorkbench dummy12 = null;
+
+	private static Channel dummy13 = null;
+
+	private static SynchBenchmark dummy14 = null;
+
+	private static ReadWriteLock dummy15 = null;
+
+	private static SeqLock dummy16 = null;
+
+	private static LockStat dummy17 = null;
+
+	private static KThreadPool dummy18 = null;
+
+	private static Barrier dummy19 = null;
 }
@@ -0,0 +1,358 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.EOFException;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * A parsed executable, kept in a cache shared by all processes. Running a
+ * program opens and parses its COFF headers only the first time; later
+ * <tt>exec()</tt>s of the same file find it here. The read-only pages of
+ * its text are loaded into frames once and mapped by every process running
+ * the program, so only the writable pages need frames of their own.
+ *
+ * <p>
+ * Executables are named by the file they were loaded from. An executable
+ * stays in the cache while processes run it, and a few that nobody runs
+ * are kept as well, with their text frames, for the next <tt>exec()</tt>.
+ * Text frames that no process maps are given back when memory runs out.
+ * When the file is created again, written, mapped or removed, its
+ * executable leaves the cache, and processes still running it keep the
+ * old text.
+ *
+ * <p>
+ * The cache itself is protected by a lock of its own. Text frames are
+ * managed with <tt>UserKernel.lock</tt> held.
+ */
+public class Executable {
+    private Executable(String name, Coff coff, int numPages) {
+	this.name = name;
+	this.coff = coff;
+	this.numPages = numPages;
+
+	textFrames = new int[numPages];
+	textSections = new CoffSection[numPages];
+	for (int vpn=0; vpn<numPages; vpn++)
+	    textFrames[vpn] = -1;
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (!section.isReadOnly())
+		continue;
+
+	    for (int i=0; i<section.getLength(); i++)
+		textSections[section.getFirstVPN()+i] = section;
+	}
+    }
+
+    /**
+     * Return the executable loaded from the specified file, opening and
+     * parsing it if it is not in the cache. The caller must call
+     * <tt>release()</tt> when it no longer runs the executable.
+     *
+     * @return	the executable, or <tt>null</tt> if the file could not be
+     *		opened or is not a valid executable.
+     */
+    public static Executable open(String name) {
+	cacheLock.acquire();
+
+	Executable executable = cache.get(name);
+
+	if (executable == null) {
+	    executable = load(name);
+	    if (executable == null) {
+		cacheLock.release();
+		return null;
+	    }
+	    cache.put(name, executable);
+	}
+	else if (executable.numUsers == 0) {
+	    unused.remove(executable);
+	}
+
+	executable.numUsers++;
+
+	cacheLock.release();
+	return executable;
+    }
+
+    private static Executable load(String name) {
+	OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+	if (file == null) {
+	    Lib.debug(dbgProcess, "\topen failed");
+	    return null;
+	}
+
+	Coff coff;
+	try {
+	    coff = new Coff(file);
+	}
+	catch (EOFException e) {
+	    file.close();
+	    Lib.debug(dbgProcess, "\tcoff load failed");
+	    return null;
+	}
+
+	// make sure the sections are contiguous and start at page 0
+	int numPages = 0;
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (section.getFirstVPN() != numPages) {
+		coff.close();
+		Lib.debug(dbgProcess, "\tfragmented executable");
+		return null;
+	    }
+	    numPages += section.getLength();
+	}
+
+	return new Executable(name, coff, numPages);
+    }
+
+    /**
+     * Record that another process runs this executable, as after
+     * <tt>fork()</tt>.
+     */
+    public void acquire() {
+	cacheLock.acquire();
+	Lib.assertTrue(numUsers > 0);
+	numUsers++;
+	cacheLock.release();
+    }
+
+    /**
+     * Record that a process no longer runs this executable. Must be called
+     * after the process has unmapped its text, and without
+     * <tt>UserKernel.lock</tt> held.
+     */
+    public void release() {
+	Executable discarded = null;
+
+	cacheLock.acquire();
+
+	Lib.assertTrue(numUsers > 0);
+	if (--numUsers == 0) {
+	    if (cache.get(name) != this) {
+		discarded = this;
+	    }
+	    else {
+		unused.addLast(this);
+		if (unused.size() > maxUnused) {
+		    discarded = unused.removeFirst();
+		    cache.remove(discarded.name);
+		}
+	    }
+	}
+
+	cacheLock.release();
+
+	if (discarded != null)
+	    discarded.discard();
+    }
+
+    /**
+     * Remove the executable loaded from the specified file from the cache,
+     * because the file is about to change.
+     */
+    public static void invalidate(String name) {
+	// most files are not executables; a lookup alone cannot be preempted
+	if (!cache.containsKey(name))
+	    return;
+
+	Executable discarded = null;
+
+	cacheLock.acquire();
+
+	Executable executable = cache.remove(name);
+	if (executable != null && executable.numUsers == 0) {
+	    unused.remove(executable);
+	    discarded = executable;
+	}
+
+	cacheLock.release();
+
+	if (discarded != null)
+	    discarded.discard();
+    }
+
+    /**
+     * Called before a process writes to a file, or maps it.
+     */
+    public static void fileWritten(OpenFile file) {
+	if (file.getFileSystem() != null)
+	    invalidate(file.getName());
+    }
+
+    /**
+     * Free the frames of an executable that has left the cache, and close
+     * its file. A frame some process still maps is freed when the process
+     * unmaps it.
+     */
+    private void discard() {
+	boolean held = UserKernel.lock.isHeldByCurrentThread();
+	if (!held)
+	    UserKernel.lock.acquire();
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    int ppn = textFrames[vpn];
+	    if (ppn == -1)
+		continue;
+
+	    textFrames[vpn] = -1;
+	    frameOwners[ppn] = null;
+	    numTextFrames--;
+	    if (UserKernel.getPPNRefs(ppn) == 0)
+		UserKernel.frameAllocator.free(ppn);
+	}
+
+	if (!held)
+	    UserKernel.lock.release();
+
+	coff.close();
+    }
+
+    /**
+     * Return the parsed executable. Its file stays open while the
+     * executable is cached; processes must not close it.
+     */
+    public Coff getCoff() {
+	return coff;
+    }
+
+    /**
+     * Return the number of pages in the sections of this executable.
+     */
+    public int getNumPages() {
+	return numPages;
+    }
+
+    /**
+     * Test if a page is part of the read-only text, whose frames are
+     * shared.
+     */
+    public boolean isText(int vpn) {
+	return vpn >= 0 && vpn < numPages && textSections[vpn] != null;
+    }
+
+    /**
+     * Return the number of text pages that already have frames.
+     */
+    public int getNumTextFrames() {
+	return numTextFrames;
+    }
+
+    /**
+     * Return the frame holding a page of the text. If no process has loaded
+     * it yet, a frame is taken with <tt>allocateFrame()</tt> and the page is
+     * read into it. The caller must add its mapping to the frame before
+     * releasing <tt>UserKernel.lock</tt>, which must be held throughout.
+     *
+     * @param	process	the process that will map the frame.
+     * @param	vpn	the page of the text.
+     * @return	the frame, or -1 if none could be allocated.
+     */
+    public int getTextFrame(UserProcess process, int vpn) {
+	Lib.assertTrue(isText(vpn));
+
+	if (textFrames[vpn] != -1)
+	    return textFrames[vpn];
+
+	int ppn = process.allocateFrame();
+	if (ppn == -1)
+	    return -1;
+
+	CoffSection section = textSections[vpn];
+	section.loadPage(vpn - section.getFirstVPN(), ppn);
+
+	textFrames[vpn] = ppn;
+	frameOwners[ppn] = this;
+	numTextFrames++;
+
+	return ppn;
+    }
+
+    /**
+     * Test if a frame holds cached text. Such a frame is not freed when the
+     * last process unmaps it. Called with <tt>UserKernel.lock</tt> held.
+     */
+    public static boolean isTextFrame(int ppn) {
+	return frameOwners[ppn] != null;
+    }
+
+    /**
+     * Called when a text frame has been evicted from every page that mapped
+     * it and is about to be reused. The page is read again the next time a
+     * process needs it. Called with <tt>UserKernel.lock</tt> held.
+     */
+    public static void frameEvicted(int ppn) {
+	Executable owner = frameOwners[ppn];
+	if (owner == null)
+	    return;
+
+	for (int vpn=0; vpn<owner.numPages; vpn++) {
+	    if (owner.textFrames[vpn] == ppn)
+		owner.textFrames[vpn] = -1;
+	}
+	frameOwners[ppn] = null;
+	owner.numTextFrames--;
+    }
+
+    /**
+     * Free every text frame that no process maps, for when memory runs out.
+     * Called with <tt>UserKernel.lock</tt> held.
+     *
+     * @return	the number of frames freed.
+     */
+    public static int reclaimFrames() {
+	int freed = 0;
+
+	for (int ppn=0; ppn<frameOwners.length; ppn++) {
+	    if (frameOwners[ppn] != null && UserKernel.getPPNRefs(ppn) == 0) {
+		frameEvicted(ppn);
+		UserKernel.frameAllocator.free(ppn);
+		freed++;
+	    }
+	}
+
+	return freed;
+    }
+
+    private String name;
+
+    private Coff coff;
+
+    private int numPages;
+
+    /** The number of processes running this executable. */
+    private int numUsers = 0;
+
+    /** The frame of each page of the text, or -1 if it is not loaded. */
+    private int[] textFrames;
+
+    /** The read-only section of each page, or <tt>null</tt>. */
+    private CoffSection[] textSections;
+
+    private int numTextFrames = 0;
+
+    /** The most executables kept that no process runs. */
+    private static final int maxUnused = 4;
+
+    private static Lock cacheLock = new Lock();
+
+    /** The cached executables, keyed by file name. */
+    private static HashMap<String, Executable> cache =
+	new HashMap<String, Executable>();
+
+    /** The cached executables that no process runs, oldest first. */
+    private static LinkedList<Executable> unused =
+	new LinkedList<Executable>();
+
+    /** The executable whose text each frame holds, indexed by ppn. */
+    private static Executable[] frameOwners =
+	new Executable[Machine.processor().getNumPhysPages()];
+
+    private static final char dbgProcess = 'a';
+}
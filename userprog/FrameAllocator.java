@@ -0,0 +1,262 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * The free frames of physical memory. A bitmap records which frames are
+ * free, and a stack of the free frame numbers, with each frame's position
+ * in it, lets a single frame be taken or given back in constant time,
+ * without allocating.
+ *
+ * <p>
+ * A run of contiguous frames is taken from a block aligned to the next
+ * power of two at least as large, as in a buddy system, so that small
+ * runs do not break up the large blocks; the frames of the block the run
+ * does not use stay free. Blocks are found in the bitmap, a word of 64
+ * frames at a time.
+ *
+ * <p>
+ * The kernel's allocator is <tt>UserKernel.frameAllocator</tt>, which must
+ * be used with <tt>UserKernel.lock</tt> held.
+ */
+public class FrameAllocator {
+    /**
+     * Allocate a new frame allocator with every frame free.
+     *
+     * @param	numFrames	the number of frames of physical memory.
+     */
+    public FrameAllocator(int numFrames) {
+	this.numFrames = numFrames;
+
+	freeMap = new long[(numFrames + 63) / 64];
+	freeStack = new int[numFrames];
+	stackIndex = new int[numFrames];
+
+	// the lowest frames are handed out first
+	for (int ppn=numFrames-1; ppn>=0; ppn--)
+	    push(ppn);
+    }
+
+    /**
+     * Take a free frame.
+     *
+     * @return	the physical page number, or -1 if no frame is free.
+     */
+    public int allocate() {
+	if (numFree == 0)
+	    return -1;
+
+	int ppn = freeStack[numFree-1];
+	remove(ppn);
+	allocated(1);
+	return ppn;
+    }
+
+    /**
+     * Take a run of contiguous free frames.
+     *
+     * @param	length	the number of frames in the run.
+     * @return	the first frame of the run, or -1 if there is no free
+     *		block large enough.
+     */
+    public int allocateRun(int length) {
+	if (length <= 1)
+	    return (length == 1) ? allocate() : -1;
+
+	int order = 0;
+	while ((1 << order) < length)
+	    order++;
+
+	int first = findBlock(order);
+	if (first == -1) {
+	    numRunsFailed++;
+	    return -1;
+	}
+
+	for (int ppn=first; ppn<first+length; ppn++)
+	    remove(ppn);
+	allocated(length);
+	return first;
+    }
+
+    /**
+     * Give a frame back.
+     */
+    public void free(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numFrames && !isFree(ppn));
+
+	push(ppn);
+	numFrees++;
+    }
+
+    /**
+     * Test if a frame is free.
+     */
+    public boolean isFree(int ppn) {
+	return (freeMap[ppn/64] & (1L << (ppn%64))) != 0;
+    }
+
+    /**
+     * Return the number of free frames.
+     */
+    public int getNumFree() {
+	return numFree;
+    }
+
+    /**
+     * Return the number of frames in use.
+     */
+    public int getNumAllocated() {
+	return numFrames - numFree;
+    }
+
+    /**
+     * Return the most frames that have been in use at once.
+     */
+    public int getPeakAllocated() {
+	return peakAllocated;
+    }
+
+    /**
+     * Return the size of the largest aligned block of free frames, the
+     * longest run <tt>allocateRun()</tt> is sure to succeed for.
+     */
+    public int getLargestFreeBlock() {
+	int order = 0;
+	while ((1 << (order+1)) <= numFrames && findBlock(order+1) != -1)
+	    order++;
+
+	return (numFree == 0) ? 0 : 1 << order;
+    }
+
+    /**
+     * Return a summary of how memory is used, for debugging.
+     */
+    public String toString() {
+	return "frames: " + getNumAllocated() + "/" + numFrames
+	    + " in use, peak " + peakAllocated
+	    + ", largest free block " + getLargestFreeBlock()
+	    + ", " + numAllocations + " allocations, " + numFrees + " frees, "
+	    + numRunsFailed + " runs failed";
+    }
+
+    /**
+     * Find an aligned block of 2<sup>order</sup> free frames.
+     *
+     * @return	the first frame of the block, or -1 if there is none.
+     */
+    private int findBlock(int order) {
+	int size = 1 << order;
+	if (size > numFrames)
+	    return -1;
+
+	if (size < 64) {
+	    long mask = (1L << size) - 1;
+	    for (int w=0; w<freeMap.length; w++) {
+		long word = freeMap[w];
+		if (word == 0)
+		    continue;
+
+		for (int shift=0; shift<64; shift+=size) {
+		    if (((word >>> shift) & mask) == mask)
+			return w*64 + shift;
+		}
+	    }
+	}
+	else {
+	    // frames past the end are never free, so a whole block is in range
+	    int words = size / 64;
+	    for (int w=0; w+words<=freeMap.length; w+=words) {
+		int i = 0;
+		while (i < words && freeMap[w+i] == -1L)
+		    i++;
+		if (i == words)
+		    return w*64;
+	    }
+	}
+
+	return -1;
+    }
+
+    private void push(int ppn) {
+	freeMap[ppn/64] |= 1L << (ppn%64);
+	freeStack[numFree] = ppn;
+	stackIndex[ppn] = numFree;
+	numFree++;
+    }
+
+    /**
+     * Take a free frame out of the stack, by moving the top frame into its
+     * place.
+     */
+    private void remove(int ppn) {
+	Lib.assertTrue(isFree(ppn));
+
+	freeMap[ppn/64] &= ~(1L << (ppn%64));
+
+	int last = freeStack[--numFree];
+	freeStack[stackIndex[ppn]] = last;
+	stackIndex[last] = stackIndex[ppn];
+    }
+
+    private void allocated(int count) {
+	numAllocations += count;
+	peakAllocated = Math.max(peakAllocated, numFrames - numFree);
+    }
+
+    /**
+     * Test the allocator.
+     */
+    public static void selfTest() {
+	FrameAllocator allocator = new FrameAllocator(130);
+
+	Lib.assertTrue(allocator.allocate() == 0);
+	Lib.assertTrue(allocator.getNumFree() == 129);
+
+	// frame 0 is taken, so the first block of 4 starts at 4
+	int run = allocator.allocateRun(3);
+	Lib.assertTrue(run == 4);
+	Lib.assertTrue(allocator.isFree(7) && !allocator.isFree(6));
+
+	// a block of 128 cannot include frame 0
+	Lib.assertTrue(allocator.allocateRun(100) == -1);
+	Lib.assertTrue(allocator.getLargestFreeBlock() == 64);
+	Lib.assertTrue(allocator.allocateRun(64) == 64);
+
+	allocator.free(0);
+	for (int ppn=run; ppn<run+3; ppn++)
+	    allocator.free(ppn);
+	for (int ppn=64; ppn<128; ppn++)
+	    allocator.free(ppn);
+
+	Lib.assertTrue(allocator.getNumFree() == 130);
+	Lib.assertTrue(allocator.getLargestFreeBlock() == 128);
+	Lib.assertTrue(allocator.getPeakAllocated() == 68);
+
+	// every frame comes out once, and then there are none
+	boolean[] seen = new boolean[130];
+	for (int i=0; i<130; i++) {
+	    int ppn = allocator.allocate();
+	    Lib.assertTrue(ppn != -1 && !seen[ppn]);
+	    seen[ppn] = true;
+	}
+	Lib.assertTrue(allocator.allocate() == -1);
+	Lib.assertTrue(allocator.allocateRun(2) == -1);
+    }
+
+    private int numFrames;
+
+    /** One bit per frame, set if the frame is free. */
+    private long[] freeMap;
+
+    /** The free frames, and the position of each free frame among them. */
+    private int[] freeStack, stackIndex;
+
+    private int numFree = 0;
+
+    private int peakAllocated = 0;
+
+    private int numAllocations = 0, numFrees = 0, numRunsFailed = 0;
+}
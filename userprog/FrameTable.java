@@ -0,0 +1,305 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * The inverted page table: for each frame of physical memory, the pages
+ * that map it, how many times the kernel has it pinned, and whether it has
+ * been referenced since the page replacement clock last passed it. Both
+ * kernels record mappings here, and the demand-paging kernel chooses its
+ * victims from it.
+ *
+ * <p>
+ * The table is kept as parallel arrays rather than an object per mapping,
+ * so looking up or scanning frames allocates nothing. A frame mapped by
+ * more than one page, as after a copy-on-write <tt>fork()</tt>, keeps its
+ * first mapping in the slot with the frame's number and the others in
+ * overflow slots after the frames, linked from it. The mappings of a frame
+ * are visited with
+ *
+ * <pre>
+ * for (int m = table.firstMapping(ppn); m != -1; m = table.nextMapping(m))
+ * </pre>
+ *
+ * <p>
+ * The kernel's frame table is <tt>UserKernel.frameTable</tt>, which must be
+ * used with <tt>UserKernel.lock</tt> held.
+ */
+public class FrameTable {
+    /**
+     * Allocate a new frame table with no frame mapped.
+     *
+     * @param	numFrames	the number of frames of physical memory.
+     */
+    public FrameTable(int numFrames) {
+	this.numFrames = numFrames;
+
+	pinCount = new int[numFrames];
+	referenced = new boolean[numFrames];
+	numMappings = new int[numFrames];
+
+	// start with an overflow slot for every frame
+	resize(2*numFrames);
+    }
+
+    /**
+     * Record that a page maps a frame. A frame that was not mapped starts
+     * out unpinned and referenced.
+     */
+    public void map(int ppn, int vpn, UserProcess process) {
+	if (numMappings[ppn] == 0) {
+	    owner[ppn] = process;
+	    this.vpn[ppn] = vpn;
+	    next[ppn] = -1;
+	    pinCount[ppn] = 0;
+	    referenced[ppn] = true;
+	}
+	else {
+	    if (freeSlot == -1)
+		resize(2*owner.length);
+
+	    int slot = freeSlot;
+	    freeSlot = next[slot];
+
+	    owner[slot] = process;
+	    this.vpn[slot] = vpn;
+	    next[slot] = next[ppn];
+	    next[ppn] = slot;
+	}
+
+	numMappings[ppn]++;
+    }
+
+    /**
+     * Remove a process's mapping of a frame.
+     *
+     * @return	<tt>true</tt> if no page maps the frame any more, so it can be
+     *		freed.
+     */
+    public boolean unmap(int ppn, UserProcess process) {
+	int prev = -1;
+	for (int m = firstMapping(ppn); m != -1; prev = m, m = next[m]) {
+	    if (owner[m] != process)
+		continue;
+
+	    if (m == ppn) {
+		// move the next mapping, if any, into the frame's own slot
+		int slot = next[ppn];
+		if (slot != -1) {
+		    owner[ppn] = owner[slot];
+		    vpn[ppn] = vpn[slot];
+		    next[ppn] = next[slot];
+		    freeSlot(slot);
+		}
+		else {
+		    owner[ppn] = null;
+		}
+	    }
+	    else {
+		next[prev] = next[m];
+		freeSlot(m);
+	    }
+
+	    numMappings[ppn]--;
+	    break;
+	}
+
+	return numMappings[ppn] == 0;
+    }
+
+    /**
+     * Remove every mapping of a frame, as when it is evicted.
+     */
+    public void unmapAll(int ppn) {
+	if (numMappings[ppn] == 0)
+	    return;
+
+	for (int m = next[ppn]; m != -1; ) {
+	    int following = next[m];
+	    freeSlot(m);
+	    m = following;
+	}
+
+	owner[ppn] = null;
+	numMappings[ppn] = 0;
+    }
+
+    /**
+     * Return the number of pages that map a frame.
+     */
+    public int getNumMappings(int ppn) {
+	return numMappings[ppn];
+    }
+
+    /**
+     * Return the first mapping of a frame, or -1 if it is not mapped.
+     */
+    public int firstMapping(int ppn) {
+	return (numMappings[ppn] == 0) ? -1 : ppn;
+    }
+
+    /**
+     * Return the mapping after <i>m</i> of the same frame, or -1.
+     */
+    public int nextMapping(int m) {
+	return next[m];
+    }
+
+    /**
+     * Return the process of a mapping.
+     */
+    public UserProcess getProcess(int m) {
+	return owner[m];
+    }
+
+    /**
+     * Return the virtual page of a mapping.
+     */
+    public int getVPN(int m) {
+	return vpn[m];
+    }
+
+    /**
+     * Pin a frame, so that it is not evicted while the kernel uses it.
+     * Pins are counted, so a frame stays pinned until every pin is undone.
+     */
+    public void pin(int ppn) {
+	pinCount[ppn]++;
+    }
+
+    /**
+     * Undo a pin of a frame.
+     *
+     * @return	<tt>true</tt> if the frame is no longer pinned.
+     */
+    public boolean unpin(int ppn) {
+	// a frame mapped again since it was pinned has already been reset
+	if (pinCount[ppn] > 0)
+	    pinCount[ppn]--;
+
+	return pinCount[ppn] == 0;
+    }
+
+    /**
+     * Test if a frame is pinned.
+     */
+    public boolean isPinned(int ppn) {
+	return pinCount[ppn] > 0;
+    }
+
+    /**
+     * Record that a frame has been used.
+     */
+    public void setReferenced(int ppn) {
+	referenced[ppn] = true;
+    }
+
+    /**
+     * Clear a frame's referenced bit, returning its old value, as the
+     * replacement clock passes it.
+     */
+    public boolean clearReferenced(int ppn) {
+	boolean wasReferenced = referenced[ppn];
+	referenced[ppn] = false;
+	return wasReferenced;
+    }
+
+    /**
+     * Test the frame table.
+     */
+    public static void selfTest() {
+	FrameTable table = new FrameTable(2);
+
+	UserProcess process = null;
+
+	// more sharers than overflow slots makes the table grow
+	table.map(1, 5, process);
+	table.map(1, 6, process);
+	table.map(1, 7, process);
+	table.map(1, 8, process);
+	Lib.assertTrue(table.getNumMappings(1) == 4);
+	Lib.assertTrue(table.getNumMappings(0) == 0 && table.firstMapping(0) == -1);
+
+	int sum = 0;
+	for (int m = table.firstMapping(1); m != -1; m = table.nextMapping(m))
+	    sum += table.getVPN(m);
+	Lib.assertTrue(sum == 5+6+7+8);
+
+	// removing the first mapping moves another into the frame's slot
+	Lib.assertTrue(!table.unmap(1, process));
+	Lib.assertTrue(table.getVPN(table.firstMapping(1)) != 5);
+	Lib.assertTrue(!table.unmap(1, process));
+	Lib.assertTrue(table.getNumMappings(1) == 2);
+
+	table.pin(1);
+	table.pin(1);
+	Lib.assertTrue(!table.unpin(1) && table.isPinned(1));
+	Lib.assertTrue(table.unpin(1) && !table.isPinned(1));
+
+	Lib.assertTrue(table.clearReferenced(1) && !table.clearReferenced(1));
+
+	table.unmapAll(1);
+	Lib.assertTrue(table.getNumMappings(1) == 0);
+
+	// a frame mapped again starts out unpinned and referenced
+	table.pin(1);
+	table.map(1, 9, process);
+	Lib.assertTrue(!table.isPinned(1) && table.clearReferenced(1));
+	Lib.assertTrue(table.unmap(1, process));
+    }
+
+    private void freeSlot(int slot) {
+	owner[slot] = null;
+	next[slot] = freeSlot;
+	freeSlot = slot;
+    }
+
+    /**
+     * Grow the mapping slots, adding the new overflow slots to the free
+     * list.
+     */
+    private void resize(int length) {
+	int oldLength = (owner == null) ? numFrames : owner.length;
+
+	UserProcess[] newOwner = new UserProcess[length];
+	int[] newVPN = new int[length];
+	int[] newNext = new int[length];
+	if (owner != null) {
+	    System.arraycopy(owner, 0, newOwner, 0, oldLength);
+	    System.arraycopy(vpn, 0, newVPN, 0, oldLength);
+	    System.arraycopy(next, 0, newNext, 0, oldLength);
+	}
+	owner = newOwner;
+	vpn = newVPN;
+	next = newNext;
+
+	for (int slot=length-1; slot>=oldLength; slot--) {
+	    next[slot] = freeSlot;
+	    freeSlot = slot;
+	}
+    }
+
+    private int numFrames;
+
+    /**
+     * For each mapping slot, the process and page of the mapping, and the
+     * next mapping of the same frame or the next free slot. Slot
+     * <i>ppn</i>, for each frame, holds the frame's first mapping.
+     */
+    private UserProcess[] owner;
+    private int[] vpn, next;
+
+    /** The first free overflow slot, or -1. */
+    private int freeSlot = -1;
+
+    /** For each frame, the number of pages that map it. */
+    private int[] numMappings;
+
+    /** For each frame, the number of times the kernel has pinned it. */
+    private int[] pinCount;
+
+    /** For each frame, whether it has been used since the clock passed. */
+    private boolean[] referenced;
+}
@@ -0,0 +1,95 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.HashMap;
+
+/**
+ * Kernel wait queues for user-level synchronization, in the style of UNIX
+ * futexes. A user lock keeps its state in an ordinary word of user memory and
+ * changes it without entering the kernel; only a thread that finds the lock
+ * taken calls <tt>futex_wait()</tt>, and only an unlock that sees waiters
+ * calls <tt>futex_wake()</tt>.
+ *
+ * <p>
+ * Queues are keyed by the physical address of the word, so processes that
+ * share a page find the same queue. The caller must keep the page pinned
+ * while a thread waits on it, so that the address stays valid. A queue
+ * exists only while threads are waiting in it.
+ */
+public class Futex {
+    /**
+     * If the word at the specified physical address still holds
+     * <i>expected</i>, sleep until another thread wakes this address.
+     * Checking the word and going to sleep are atomic with respect to
+     * <tt>wake()</tt>, so a wakeup cannot be lost in between.
+     *
+     * @param	paddr		the physical address of the word.
+     * @param	expected	the value the caller last saw in the word.
+     * @return	<tt>true</tt> if the thread slept and was woken, or
+     *		<tt>false</tt> if the word had already changed.
+     */
+    public static boolean sleep(int paddr, int expected) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (Lib.bytesToInt(Machine.processor().getMemory(), paddr) != expected) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	Integer key = new Integer(paddr);
+	Futex futex = futexes.get(key);
+	if (futex == null) {
+	    futex = new Futex();
+	    futexes.put(key, futex);
+	}
+
+	futex.numWaiting++;
+	futex.waitQueue.waitForAccess(KThread.currentThread());
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Wake up to <i>count</i> threads waiting on the specified physical
+     * address, oldest first.
+     *
+     * @param	paddr	the physical address of the word.
+     * @param	count	the most threads to wake.
+     * @return	the number of threads woken.
+     */
+    public static int wake(int paddr, int count) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Integer key = new Integer(paddr);
+	Futex futex = futexes.get(key);
+
+	int woken = 0;
+	while (futex != null && woken < count) {
+	    KThread thread = futex.waitQueue.nextThread();
+	    thread.ready();
+	    woken++;
+
+	    if (--futex.numWaiting == 0) {
+		futexes.remove(key);
+		futex = null;
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return woken;
+    }
+
+    private int numWaiting = 0;
+
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+
+    /** The futexes with waiters, keyed by physical address. */
+    private static HashMap<Integer, Futex> futexes =
+	new HashMap<Integer, Futex>();
+}
@@ -0,0 +1,280 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A pair of submission and completion rings for asynchronous I/O, in the
+ * style of Linux io_uring. The rings lie in the memory of the process that
+ * set them up. The process queues file operations in the submission ring
+ * and collects their results from the completion ring without entering the
+ * kernel; it calls <tt>ioring_enter()</tt> only to announce new submissions
+ * or to wait for completions, however many there are.
+ *
+ * <p>
+ * A few kernel threads belong to each ring. Each one takes the next
+ * submission, performs it on behalf of the process as the matching system
+ * call would, and posts its result, so several operations can be waiting
+ * on the file system at once while the process keeps running. Operations
+ * on different file descriptors may complete in any order, but those on the
+ * same descriptor are performed one at a time, in the order they were
+ * submitted, so they do not share a file position. A worker takes a
+ * submission only when the completion ring has room for its result.
+ *
+ * <p>
+ * The ring is open as a file descriptor of the process. Closing it, or the
+ * process exiting, waits for the operations in flight to finish. It is not
+ * inherited by <tt>fork()</tt>.
+ */
+public class IORing extends OpenFile {
+    /**
+     * Allocate a new ring on the memory at <i>vaddr</i> in the specified
+     * process, which must already hold an empty ring, and start its
+     * workers.
+     */
+    public IORing(UserProcess process, int vaddr) {
+	super(null, "ioring");
+
+	this.process = process;
+	this.vaddr = vaddr;
+
+	numRunning = numWorkers;
+	for (int i=0; i<numWorkers; i++) {
+	    new KThread(new Runnable() {
+		    public void run() { work(); }
+		}).setName("ioring worker").fork();
+	}
+    }
+
+    /**
+     * Handle <tt>ioring_enter()</tt>: wake workers for the submissions the
+     * process has queued, then wait until at least <i>minComplete</i>
+     * completions are waiting, or until nothing more can complete.
+     *
+     * @return	the number of completions waiting, or -1 if
+     *		<i>minComplete</i> is invalid.
+     */
+    public int enter(int minComplete) {
+	if (minComplete < 0 || minComplete > numEntries || closing)
+	    return -1;
+
+	lock.acquire();
+
+	// one wakeup per submission, rather than every worker per call
+	int pending = readWord(sqTailOffset, sqHead) - sqHead;
+	for (int i=0; i<Math.min(pending, numIdle); i++)
+	    workAvailable.wake();
+
+	int cqHead = readWord(cqHeadOffset, cqTail);
+	while (cqTail - cqHead < minComplete && (inFlight > 0 || pending > 0)) {
+	    completionTarget = cqHead + minComplete;
+	    waitingForCompletions = true;
+	    completionPosted.sleep();
+	    waitingForCompletions = false;
+
+	    pending = readWord(sqTailOffset, sqHead) - sqHead;
+	    cqHead = readWord(cqHeadOffset, cqTail);
+	}
+
+	int ready = cqTail - cqHead;
+
+	lock.release();
+	return ready;
+    }
+
+    public void close() {
+	lock.acquire();
+
+	closing = true;
+	workAvailable.wakeAll();
+
+	while (numRunning > 0)
+	    workersFinished.sleep();
+
+	lock.release();
+    }
+
+    /**
+     * The body of a worker thread.
+     */
+    private void work() {
+	byte[] sqe = new byte[sqeSize];
+	byte[] cqe = new byte[cqeSize];
+
+	lock.acquire();
+
+	while (true) {
+	    // every operation in flight must have room for its completion
+	    while (!closing &&
+		   (readWord(sqTailOffset, sqHead) - sqHead <= 0 ||
+		    cqTail + inFlight - readWord(cqHeadOffset, cqTail)
+		    >= numEntries)) {
+		numIdle++;
+		workAvailable.sleep();
+		numIdle--;
+	    }
+	    if (closing)
+		break;
+
+	    int index = sqHead & (numEntries-1);
+	    boolean valid = (process.readVirtualMemory(vaddr + sqOffset +
+						       index*sqeSize, sqe)
+			     == sqeSize);
+
+	    sqHead++;
+	    writeWord(sqHeadOffset, sqHead);
+	    inFlight++;
+
+	    int fd = Lib.bytesToInt(sqe, 4);
+	    boolean ordered = valid && usesFile(Lib.bytesToInt(sqe, 0)) &&
+		fd >= 0 && fd < UserProcess.maxFiles;
+
+	    // wait for the earlier operations on the same descriptor
+	    int ticket = ordered ? nextTicket[fd]++ : 0;
+	    while (ordered && nowServing[fd] != ticket)
+		fileAvailable.sleep();
+
+	    lock.release();
+
+	    int result = valid ? perform(sqe) : -1;
+
+	    lock.acquire();
+
+	    if (ordered) {
+		nowServing[fd]++;
+		fileAvailable.wakeAll();
+	    }
+
+	    Lib.bytesFromInt(cqe, 0, Lib.bytesToInt(sqe, 16));
+	    Lib.bytesFromInt(cqe, 4, result);
+	    index = cqTail & (numEntries-1);
+	    process.writeVirtualMemory(vaddr + cqOffset + index*cqeSize, cqe);
+
+	    cqTail++;
+	    writeWord(cqTailOffset, cqTail);
+	    inFlight--;
+
+	    if (waitingForCompletions &&
+		(cqTail - completionTarget >= 0 || inFlight == 0))
+		completionPosted.wake();
+	}
+
+	if (--numRunning == 0)
+	    workersFinished.wake();
+
+	lock.release();
+    }
+
+    /**
+     * Perform a submission as the process would with the matching system
+     * call.
+     *
+     * @return	the result of the operation.
+     */
+    private int perform(byte[] sqe) {
+	int opcode = Lib.bytesToInt(sqe, 0);
+	int fd = Lib.bytesToInt(sqe, 4);
+	int addr = Lib.bytesToInt(sqe, 8);
+	int length = Lib.bytesToInt(sqe, 12);
+
+	switch (opcode) {
+	case UserProcess.syscallOpen:
+	case UserProcess.syscallCreate:
+	    return process.handleSyscall(opcode, addr, 0, 0, 0);
+	case UserProcess.syscallRead:
+	case UserProcess.syscallWrite:
+	    return process.handleSyscall(opcode, fd, addr, length, 0);
+	case UserProcess.syscallClose:
+	    // a worker cannot wait for itself to finish
+	    if (fd >= 0 && fd < UserProcess.maxFiles &&
+		process.fileTable[fd] instanceof IORing)
+		return -1;
+	    return process.handleSyscall(opcode, fd, 0, 0, 0);
+	default:
+	    return -1;
+	}
+    }
+
+    private static boolean usesFile(int opcode) {
+	return opcode == UserProcess.syscallRead ||
+	    opcode == UserProcess.syscallWrite ||
+	    opcode == UserProcess.syscallClose;
+    }
+
+    /**
+     * Read a counter from the ring header, or return <i>otherwise</i> if the
+     * process no longer has the memory.
+     */
+    private int readWord(int offset, int otherwise) {
+	byte[] word = new byte[4];
+	if (process.readVirtualMemory(vaddr + offset, word) != word.length)
+	    return otherwise;
+	return Lib.bytesToInt(word, 0);
+    }
+
+    private void writeWord(int offset, int value) {
+	process.writeVirtualMemory(vaddr + offset, Lib.bytesFromInt(value));
+    }
+
+    private UserProcess process;
+
+    /** The address of the ring in the process's memory. */
+    private int vaddr;
+
+    /**
+     * The kernel's copies of the counters only it advances. The process
+     * advances the submission tail and the completion head.
+     */
+    private int sqHead = 0, cqTail = 0;
+
+    private int inFlight = 0;
+
+    private int numRunning, numIdle = 0;
+
+    private boolean closing = false;
+
+    private boolean waitingForCompletions = false;
+
+    /** The completion tail that will satisfy <tt>enter()</tt>. */
+    private int completionTarget;
+
+    /**
+     * For each file descriptor, the turn given to the next operation on it,
+     * and the turn of the operation allowed to run.
+     */
+    private int[] nextTicket = new int[UserProcess.maxFiles],
+	nowServing = new int[UserProcess.maxFiles];
+
+    private Lock lock = new Lock();
+
+    private Condition workAvailable = new Condition(lock);
+
+    private Condition completionPosted = new Condition(lock);
+
+    private Condition workersFinished = new Condition(lock);
+
+    private Condition fileAvailable = new Condition(lock);
+
+    /** The number of entries in each ring; a power of two. */
+    public static final int numEntries = 32;
+
+    private static final int numWorkers = 4;
+
+    /**
+     * The layout of <tt>struct io_ring</tt>: four counters, then the
+     * submission entries, then the completion entries.
+     */
+    private static final int
+	sqHeadOffset = 0,
+	sqTailOffset = 4,
+	cqHeadOffset = 8,
+	cqTailOffset = 12,
+	sqeSize = 20,
+	cqeSize = 8,
+	sqOffset = 16,
+	cqOffset = sqOffset + numEntries*sqeSize;
+
+    /** The size of a ring in user memory. */
+    public static final int ringSize = cqOffset + numEntries*cqeSize;
+}
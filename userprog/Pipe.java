@@ -0,0 +1,177 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * One end of a pipe. Bytes written to the write end of a pipe are kept in a
+ * ring buffer in kernel memory until they are read from the read end, so
+ * processes can pass a stream of data to each other without a temporary
+ * file, and without waiting for the file system.
+ *
+ * <p>
+ * A read waits until the pipe holds some data and returns as much as it
+ * can, or returns 0 once every write end is closed and the pipe is empty. A
+ * write waits for room until all of its data is in the pipe, and fails once
+ * every read end is closed. Data is copied in and out in blocks, and waiting
+ * threads are woken in batches: readers once per write, and writers only when
+ * at least half of the buffer is free, rather than once per byte.
+ */
+public class Pipe extends OpenFile {
+    private Pipe(Buffer buffer, boolean reader) {
+	super(null, "pipe");
+
+	this.buffer = buffer;
+	this.reader = reader;
+
+	if (reader)
+	    buffer.numReaders++;
+	else
+	    buffer.numWriters++;
+    }
+
+    /**
+     * Create a new, empty pipe.
+     *
+     * @return	an array holding the read end and then the write end.
+     */
+    public static Pipe[] create() {
+	Buffer buffer = new Buffer();
+	return new Pipe[] { new Pipe(buffer, true), new Pipe(buffer, false) };
+    }
+
+    /**
+     * Return another end of the same kind on the same pipe, as for a process
+     * created by <tt>fork()</tt>. The pipe stays open until both are closed.
+     */
+    public Pipe duplicate() {
+	buffer.lock.acquire();
+	Pipe end = new Pipe(buffer, reader);
+	buffer.lock.release();
+	return end;
+    }
+
+    public int read(byte[] buf, int offset, int length) {
+	if (!reader || closed)
+	    return -1;
+	if (length == 0)
+	    return 0;
+
+	Buffer b = buffer;
+	b.lock.acquire();
+
+	while (b.count == 0 && b.numWriters > 0) {
+	    b.readersWaiting++;
+	    b.dataAvailable.sleep();
+	    b.readersWaiting--;
+	}
+
+	int amount = Math.min(length, b.count);
+
+	// the data may wrap around the end of the ring
+	int first = Math.min(amount, b.data.length - b.head);
+	System.arraycopy(b.data, b.head, buf, offset, first);
+	System.arraycopy(b.data, 0, buf, offset+first, amount-first);
+
+	b.head = (b.head + amount) % b.data.length;
+	b.count -= amount;
+
+	if (b.writersWaiting > 0 && b.count <= b.data.length/2)
+	    b.spaceAvailable.wakeAll();
+
+	b.lock.release();
+	return amount;
+    }
+
+    public int write(byte[] buf, int offset, int length) {
+	if (reader || closed)
+	    return -1;
+
+	Buffer b = buffer;
+	b.lock.acquire();
+
+	int written = 0;
+	while (written < length && b.numReaders > 0) {
+	    int space = b.data.length - b.count;
+
+	    if (space == 0) {
+		// let the readers empty the buffer before waiting for room
+		if (b.readersWaiting > 0)
+		    b.dataAvailable.wakeAll();
+
+		b.writersWaiting++;
+		b.spaceAvailable.sleep();
+		b.writersWaiting--;
+		continue;
+	    }
+
+	    int amount = Math.min(length - written, space);
+	    int tail = (b.head + b.count) % b.data.length;
+
+	    int first = Math.min(amount, b.data.length - tail);
+	    System.arraycopy(buf, offset+written, b.data, tail, first);
+	    System.arraycopy(buf, offset+written+first, b.data, 0, amount-first);
+
+	    b.count += amount;
+	    written += amount;
+	}
+
+	if (b.readersWaiting > 0 && written > 0)
+	    b.dataAvailable.wakeAll();
+
+	b.lock.release();
+
+	if (written == 0 && length > 0)
+	    return -1;
+	return written;
+    }
+
+    public void close() {
+	if (closed)
+	    return;
+	closed = true;
+
+	Buffer b = buffer;
+	b.lock.acquire();
+
+	// waiting writers fail, and waiting readers see the end of the data
+	if (reader) {
+	    if (--b.numReaders == 0)
+		b.spaceAvailable.wakeAll();
+	}
+	else {
+	    if (--b.numWriters == 0)
+		b.dataAvailable.wakeAll();
+	}
+
+	b.lock.release();
+    }
+
+    /** The state shared by every end of a pipe. */
+    private static class Buffer {
+	byte[] data = new byte[capacity];
+
+	/** The index of the first unread byte, and the number unread. */
+	int head = 0, count = 0;
+
+	int numReaders = 0, numWriters = 0;
+
+	int readersWaiting = 0, writersWaiting = 0;
+
+	Lock lock = new Lock();
+
+	Condition dataAvailable = new Condition(lock);
+
+	Condition spaceAvailable = new Condition(lock);
+    }
+
+    private Buffer buffer;
+
+    private boolean reader;
+
+    private boolean closed = false;
+
+    /** The number of bytes a pipe can hold. */
+    public static final int capacity = 4096;
+}
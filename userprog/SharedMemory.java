@@ -0,0 +1,190 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * A segment of physical memory that several processes can map into their
+ * address spaces at the same time, in the style of System V shared memory.
+ * Processes that attach a segment use the same frames, so data written by
+ * one is seen by the others without being copied by the kernel.
+ *
+ * <p>
+ * A segment is named by a key chosen by the programs that use it, and
+ * identified by the ID the kernel gives it when it is created. Its frames
+ * are zeroed when it is created and are never paged out. A segment is
+ * removed, and its frames freed, once no process has it attached and the
+ * process that created it has exited.
+ *
+ * <p>
+ * All of these methods must be called with <tt>UserKernel.lock</tt> held.
+ */
+public class SharedMemory {
+    private SharedMemory(int key, int[] frames, UserProcess creator) {
+	this.key = key;
+	this.frames = frames;
+	this.creator = creator;
+
+	id = nextID++;
+    }
+
+    /**
+     * Return the segment with the specified key, or <tt>null</tt> if there
+     * is none.
+     */
+    public static SharedMemory findByKey(int key) {
+	for (SharedMemory segment : segments.values()) {
+	    if (segment.key == key)
+		return segment;
+	}
+	return null;
+    }
+
+    /**
+     * Return the segment with the specified ID, or <tt>null</tt> if there is
+     * none.
+     */
+    public static SharedMemory findByID(int id) {
+	return segments.get(new Integer(id));
+    }
+
+    /**
+     * Create a segment from the specified frames, which must already be
+     * allocated to it, and zero them.
+     *
+     * @param	key	the key the segment will be found by.
+     * @param	frames	the physical pages of the segment, in order.
+     * @param	creator	the process creating the segment.
+     * @return	the new segment.
+     */
+    public static SharedMemory create(int key, int[] frames,
+				      UserProcess creator) {
+	byte[] memory = Machine.processor().getMemory();
+	for (int i=0; i<frames.length; i++) {
+	    Lib.assertTrue(!isSegmentFrame(frames[i]));
+	    Arrays.fill(memory, frames[i]*pageSize, (frames[i]+1)*pageSize,
+			(byte) 0);
+	    segmentFrames()[frames[i]] = true;
+	}
+	numSegmentFrames += frames.length;
+
+	SharedMemory segment = new SharedMemory(key, frames, creator);
+	segments.put(new Integer(segment.id), segment);
+	return segment;
+    }
+
+    /**
+     * Test if a frame belongs to a segment. Such frames must not be chosen
+     * for eviction.
+     */
+    public static boolean isSegmentFrame(int ppn) {
+	return segmentFrames != null && segmentFrames[ppn];
+    }
+
+    /**
+     * Return the number of frames held by all segments.
+     */
+    public static int getNumSegmentFrames() {
+	return numSegmentFrames;
+    }
+
+    /**
+     * Called when a process exits, after it has detached its segments.
+     * Removes the segments it created that nobody has attached.
+     */
+    public static void processExited(UserProcess process) {
+	for (Iterator<SharedMemory> i = segments.values().iterator();
+	     i.hasNext(); ) {
+	    SharedMemory segment = i.next();
+	    if (segment.creator == process) {
+		segment.creator = null;
+		if (segment.numAttached == 0) {
+		    i.remove();
+		    segment.free();
+		}
+	    }
+	}
+    }
+
+    /**
+     * Record that a process has mapped this segment.
+     */
+    public void attach() {
+	numAttached++;
+    }
+
+    /**
+     * Record that a process has unmapped this segment, and remove the
+     * segment if it is no longer used.
+     */
+    public void detach() {
+	Lib.assertTrue(numAttached > 0);
+
+	if (--numAttached == 0 && creator == null) {
+	    segments.remove(new Integer(id));
+	    free();
+	}
+    }
+
+    private void free() {
+	for (int i=0; i<frames.length; i++) {
+	    segmentFrames[frames[i]] = false;
+	    UserKernel.frameAllocator.free(frames[i]);
+	}
+	numSegmentFrames -= frames.length;
+    }
+
+    /**
+     * Return this segment's ID.
+     */
+    public int getID() {
+	return id;
+    }
+
+    /**
+     * Return the number of pages in this segment.
+     */
+    public int getNumPages() {
+	return frames.length;
+    }
+
+    /**
+     * Return the physical page that holds page <i>i</i> of this segment.
+     */
+    public int getPPN(int i) {
+	return frames[i];
+    }
+
+    private static boolean[] segmentFrames() {
+	if (segmentFrames == null)
+	    segmentFrames = new boolean[Machine.processor().getNumPhysPages()];
+	return segmentFrames;
+    }
+
+    private int key, id;
+
+    private int[] frames;
+
+    private int numAttached = 0;
+
+    /** The process that created this segment, until it exits. */
+    private UserProcess creator;
+
+    private static int nextID = 0;
+
+    private static int numSegmentFrames = 0;
+
+    /** Which frames belong to a segment, indexed by physical page number. */
+    private static boolean[] segmentFrames = null;
+
+    /** The segments that exist, keyed by ID. */
+    private static HashMap<Integer, SharedMemory> segments =
+	new HashMap<Integer, SharedMemory>();
+
+    private static final int pageSize = Processor.pageSize;
+}
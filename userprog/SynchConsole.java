@@ -4,6 +4,8 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.util.LinkedList;
+
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
@@ -77,10 +79,40 @@ public class SynchConsole {
      * @param	value	the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value) {
-	writeLock.acquire();
-	console.writeByte(value);
-	writeWait.P();
-	writeLock.release();
+	write(new byte[] { (byte) value }, 0, 1).join();
+    }
+
+    /**
+     * Start sending bytes without waiting for them to be sent. Writes are
+     * sent one after another in the order they were started, and the bytes
+     * of one write are never mixed with another's. The caller must not
+     * change the bytes until the returned future completes.
+     *
+     * @param	buf	the buffer holding the bytes to send.
+     * @param	offset	the index of the first byte to send.
+     * @param	length	the number of bytes to send.
+     * @return	a future that completes, with the number of bytes sent, when
+     *		the last byte has been sent.
+     */
+    public KFuture<Integer> write(byte[] buf, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length >= 0 &&
+		       offset+length <= buf.length);
+
+	KFuture<Integer> future = new KFuture<Integer>();
+	if (length == 0) {
+	    future.complete(new Integer(0));
+	    return future;
+	}
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	pendingWrites.add(new PendingWrite(buf, offset, length, future));
+	if (pendingWrites.size() == 1)
+	    console.writeByte(buf[offset]);
+
+	Machine.interrupt().restore(intStatus);
+
+	return future;
     }
 
     /**
@@ -93,17 +125,52 @@ public class SynchConsole {
     }
 
     private void sendInterrupt() {
-	writeWait.V();
+	PendingWrite write = pendingWrites.getFirst();
+
+	if (++write.sent == write.length) {
+	    pendingWrites.removeFirst();
+	    write.future.complete(new Integer(write.length));
+
+	    if (pendingWrites.isEmpty())
+		return;
+	    write = pendingWrites.getFirst();
+	}
+
+	console.writeByte(write.buf[write.offset + write.sent]);
+    }
+
+    /** A write that has been started but not finished. */
+    private static class PendingWrite {
+	PendingWrite(byte[] buf, int offset, int length,
+		     KFuture<Integer> future) {
+	    this.buf = buf;
+	    this.offset = offset;
+	    this.length = length;
+	    this.future = future;
+	}
+
+	byte[] buf;
+	int offset, length;
+	int sent = 0;
+	KFuture<Integer> future;
     }
 
     private boolean charAvailable = false;
 
     private SerialConsole console;
     private Lock readLock = new Lock();
-    private Lock writeLock = new Lock();
     private Semaphore readWait = new Semaphore(0);
-    private Semaphore writeWait = new Semaphore(0);
-    private Lock multiWriteLock = new Lock();
+    private LinkedList<PendingWrite> pendingWrites =
+	new LinkedList<PendingWrite>();
+
+    /**
+     * Return another file with the same access to the console as
+     * <i>file</i>, which must have been opened by this console.
+     */
+    OpenFile duplicate(OpenFile file) {
+	File f = (File) file;
+	return new File(f.canRead, f.canWrite);
+    }
 
     private class File extends OpenFile {
 	File(boolean canRead, boolean canWrite) {
@@ -137,12 +204,7 @@ public class SynchConsole {
 	    if (!canWrite)
 		return 0;
 	    
-	    multiWriteLock.acquire();
-	    for (int i=0; i<length; i++)
-		SynchConsole.this.writeByte(buf[offset+i]);
-	    multiWriteLock.release();
-	    
-	    return length;
+	    return SynchConsole.this.write(buf, offset, length).join().intValue();
 	}
 
 	private boolean canRead, canWrite;
@@ -42,6 +42,8 @@ public class UThread extends KThread {
 	for (int i=0; i<Processor.numUserRegisters; i++)
 	    userRegisters[i] = Machine.processor().readRegister(i);
 
+	process.restartSequence(userRegisters);
+
 	super.saveState();
     }
 
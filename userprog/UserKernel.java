@@ -16,12 +16,12 @@ public class UserKernel extends ThreadedKernel {
     public static int nextProcessID = 0;
     public static int numRunningProcesses = 0;
     private static Coff dummy1 = null;
-    public static LinkedList freePages = new LinkedList();
+    public static FrameAllocator frameAllocator;
 
     /* Project 3 stuff */
     public static Lock lock;
     public static HashMap<ProcessHelper, Integer> swapper;
-    public static HashMap<Integer, ProcessHelper> mmmo;
+    public static FrameTable frameTable;
 
     /**
      * Allocate a new user kernel.
@@ -29,7 +29,6 @@ public class UserKernel extends ThreadedKernel {
     public UserKernel() {
         super();
         this.swapper = new HashMap<ProcessHelper, Integer>();
-        this.mmmo = new HashMap<Integer, ProcessHelper>();
     }
 
     /**
@@ -45,11 +44,11 @@ public class UserKernel extends ThreadedKernel {
         public void run() { exceptionHandler(); }
         });
     
-    processLock = new Lock();
+    processLock = new Lock().setName("UserKernel.processLock");
     
-    lock = new Lock();     // y tho
-    for (int ppn=0; ppn<Machine.processor().getNumPhysPages(); ppn++)
-        freePages.add(new Integer(ppn));
+    lock = new Lock().setName("UserKernel.lock");     // y tho
+    frameAllocator = new FrameAllocator(Machine.processor().getNumPhysPages());
+    frameTable = new FrameTable(Machine.processor().getNumPhysPages());
     }
 
     /**
@@ -58,6 +57,9 @@ public class UserKernel extends ThreadedKernel {
     public void selfTest() {
     super.selfTest();
 
+    FrameAllocator.selfTest();
+    FrameTable.selfTest();
+
     System.out.println("Testing the console device. Typed characters");
     System.out.println("will be echoed until q is typed.");
 
@@ -127,16 +129,47 @@ public class UserKernel extends ThreadedKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+    if (frameAllocator != null)
+        Lib.debug(dbgKernel, frameAllocator.toString());
+
     super.terminate();
     }
 
+    private static final char dbgKernel = 'a';
+
     /* Project 3 helpers go here */
     public static void addPPN(int ppn, int vpn, UserProcess process) {
-        mmmo.put(ppn, new ProcessHelper(process, vpn));
+        Lib.assertTrue(frameTable.getNumMappings(ppn) == 0);
+        frameTable.map(ppn, vpn, process);
     }
 
     public static void removePPN(int ppn) {
-        mmmo.remove(ppn);
+        frameTable.unmapAll(ppn);
+    }
+
+    /**
+     * Record that another page maps a frame that is already in use, as after
+     * a copy-on-write fork. Called with <tt>lock</tt> held.
+     */
+    public static void sharePPN(int ppn, int vpn, UserProcess process) {
+        frameTable.map(ppn, vpn, process);
+    }
+
+    /**
+     * Remove a process's mapping of a frame. Called with <tt>lock</tt> held.
+     *
+     * @return  <tt>true</tt> if no page maps the frame any more, so it can be
+     *          freed.
+     */
+    public static boolean unsharePPN(int ppn, UserProcess process) {
+        return frameTable.unmap(ppn, process);
+    }
+
+    /**
+     * Return the number of pages that map a frame.
+     */
+    public static int getPPNRefs(int ppn) {
+        return frameTable.getNumMappings(ppn);
     }
 
 }
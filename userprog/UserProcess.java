@@ -5,8 +5,10 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.io.EOFException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -92,6 +94,24 @@ public class UserProcess {
 	Machine.processor().setPageTable(pageTable);
     }
 
+    /**
+     * Called by <tt>UThread.saveState()</tt> with the user registers of a
+     * thread of this process that is being switched out. If the thread was
+     * in the middle of the restartable sequence registered with
+     * <tt>restartable()</tt>, move it back to the start of the sequence, so
+     * that the sequence appears atomic to other threads.
+     *
+     * @param	registers	the saved user registers.
+     */
+    public void restartSequence(int[] registers) {
+	int pc = registers[Processor.regPC];
+
+	if (pc > restartableBegin && pc < restartableEnd) {
+	    registers[Processor.regPC] = restartableBegin;
+	    registers[Processor.regNextPC] = restartableBegin + 4;
+	}
+    }
+
     /**
      * Read a null-terminated string from this process's virtual memory. Read
      * at most <tt>maxLength + 1</tt> bytes from the specified address, search
@@ -241,6 +261,9 @@ public class UserProcess {
 	if (vpn < 0 || vpn >= pageTable.length)
 	    return -1;
 
+	if (isUserWrite && copyOnWrite[vpn] && !handleCopyOnWrite(vpn))
+	    return -1;
+
 	TranslationEntry entry = pageTable[vpn];
 	if (!entry.valid || entry.vpn != vpn)
 	    return -1;
@@ -272,32 +295,13 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
 	Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 	
-	OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-	if (executable == null) {
-	    Lib.debug(dbgProcess, "\topen failed");
+	executable = Executable.open(name);
+	if (executable == null)
 	    return false;
-	}
 
-	try {
-	    coff = new Coff(executable);
-	}
-	catch (EOFException e) {
-	    executable.close();
-	    Lib.debug(dbgProcess, "\tcoff load failed");
-	    return false;
-	}
-
-	// make sure the sections are contiguous and start at page 0
-	numPages = 0;
-	for (int s=0; s<coff.getNumSections(); s++) {
-	    CoffSection section = coff.getSection(s);
-	    if (section.getFirstVPN() != numPages) {
-		coff.close();
-		Lib.debug(dbgProcess, "\tfragmented executable");
-		return false;
-	    }
-	    numPages += section.getLength();
-	}
+	executableName = name;
+	coff = executable.getCoff();
+	numPages = executable.getNumPages();
 
 	// make sure the argv array will fit in one page
 	byte[][] argv = new byte[args.length][];
@@ -308,7 +312,7 @@ public class UserProcess {
 	    argsSize += 4 + argv[i].length + 1;
 	}
 	if (argsSize > pageSize) {
-	    coff.close();
+	    executable.release();
 	    Lib.debug(dbgProcess, "\targuments too long");
 	    return false;
 	}
@@ -358,17 +362,42 @@ public class UserProcess {
 	// allocate memory
 	UserKernel.lock.acquire();
 
-	if (UserKernel.freePages.size() < numPages) {
+	// text another process has loaded is shared, and needs no frames
+	if (UserKernel.frameAllocator.getNumFree() <
+	    numPages - executable.getNumTextFrames())
+	    Executable.reclaimFrames();
+
+	if (UserKernel.frameAllocator.getNumFree() <
+	    numPages - executable.getNumTextFrames()) {
 	    UserKernel.lock.release();
-	    coff.close();
+	    executable.release();
 	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
 	    return false;
 	}
 
 	pageTable = new TranslationEntry[numPages];
+	copyOnWrite = new boolean[numPages];
+
+	// give the rest of the address space contiguous frames if possible,
+	// so reads and writes can pass the file whole runs of pages
+	int numPrivatePages = 0;
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (!executable.isText(vpn))
+		numPrivatePages++;
+	}
+	int nextPPN = UserKernel.frameAllocator.allocateRun(numPrivatePages);
 
 	for (int vpn=0; vpn<numPages; vpn++) {
-	    int ppn = ((Integer)UserKernel.freePages.removeFirst()).intValue();
+	    if (executable.isText(vpn)) {
+		int ppn = executable.getTextFrame(this, vpn);
+		UserKernel.sharePPN(ppn, vpn, this);
+		pageTable[vpn] = new TranslationEntry(vpn, ppn,
+						      true, true, false, false);
+		continue;
+	    }
+
+	    int ppn = (nextPPN != -1) ? nextPPN++ :
+		UserKernel.frameAllocator.allocate();
 
 	    /* AHHHHHHHHH */
 	    UserKernel.addPPN(ppn,vpn,this);
@@ -379,9 +408,11 @@ public class UserProcess {
 	
 	UserKernel.lock.release();
 
-	// load sections
+	// load the writable sections
 	for (int s=0; s<coff.getNumSections(); s++) {
 	    CoffSection section = coff.getSection(s);
+	    if (section.isReadOnly())
+		continue;
 	    
 	    Lib.debug(dbgProcess, "\tinitializing " + section.getName()
 		      + " section (" + section.getLength() + " pages)");
@@ -389,7 +420,6 @@ public class UserProcess {
 	    for (int i=0; i<section.getLength(); i++) {
 		int vpn = section.getFirstVPN()+i;
 
-		pageTable[vpn].readOnly = section.isReadOnly();
 		section.loadPage(i, pinVirtualPage(vpn, false));
 	    }
 	}
@@ -401,20 +431,139 @@ public class UserProcess {
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-        for (int vpn=0; vpn<pageTable.length; vpn++)
-	    UserKernel.freePages.add(new Integer(pageTable[vpn].ppn));
+        for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    if (!pageTable[vpn].valid)
+		continue;
+
+	    // cached text stays in memory for the next process to run it
+	    int ppn = pageTable[vpn].ppn;
+	    if (UserKernel.unsharePPN(ppn, this) && !Executable.isTextFrame(ppn))
+		UserKernel.frameAllocator.free(ppn);
+	}
     }  
 
+    /**
+     * Give this new process a copy-on-write copy of its parent's address
+     * space, for <tt>fork()</tt>. Every frame is shared, and writable pages
+     * become read-only in both processes until one of them writes.
+     *
+     * @param	parent	the process calling <tt>fork()</tt>.
+     * @return	<tt>true</tt> if the address space was copied.
+     */
+    protected boolean forkAddressSpace(UserProcess parent) {
+	UserKernel.lock.acquire();
+
+	numPages = parent.numPages;
+	pageTable = new TranslationEntry[numPages];
+	copyOnWrite = new boolean[numPages];
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    TranslationEntry entry = parent.pageTable[vpn];
+
+	    if (!entry.readOnly) {
+		entry.readOnly = true;
+		parent.copyOnWrite[vpn] = true;
+	    }
+	    copyOnWrite[vpn] = parent.copyOnWrite[vpn];
+
+	    pageTable[vpn] = new TranslationEntry(vpn, entry.ppn,
+						  true, true, false, false);
+	    UserKernel.sharePPN(entry.ppn, vpn, this);
+	}
+
+	inheritSegments(parent);
+
+	UserKernel.lock.release();
+
+	return true;
+    }
+
+    /**
+     * Give a page that was shared by <tt>fork()</tt> its own frame, or just
+     * make it writable again if no other process still shares the frame.
+     *
+     * @param	vpn	the page that is about to be written.
+     * @return	<tt>false</tt> if the page is not copy-on-write, or there is
+     *		no memory to copy it into.
+     */
+    protected boolean handleCopyOnWrite(int vpn) {
+	if (vpn < 0 || vpn >= pageTable.length)
+	    return false;
+
+	UserKernel.lock.acquire();
+
+	if (!copyOnWrite[vpn]) {
+	    UserKernel.lock.release();
+	    return false;
+	}
+
+	TranslationEntry entry = pageTable[vpn];
+
+	if (UserKernel.getPPNRefs(entry.ppn) > 1) {
+	    int ppn = UserKernel.frameAllocator.allocate();
+	    if (ppn == -1) {
+		UserKernel.lock.release();
+		return false;
+	    }
+
+	    byte[] memory = Machine.processor().getMemory();
+	    System.arraycopy(memory, entry.ppn*pageSize, memory, ppn*pageSize,
+			     pageSize);
+
+	    UserKernel.unsharePPN(entry.ppn, this);
+	    UserKernel.addPPN(ppn, vpn, this);
+	    entry.ppn = ppn;
+	}
+
+	entry.readOnly = false;
+	copyOnWrite[vpn] = false;
+
+	UserKernel.lock.release();
+	return true;
+    }
+
+    /**
+     * Return a new open file on the same file or stream as <i>of</i>, for a
+     * process created by <tt>fork()</tt>. A disk file is opened again at the
+     * same position.
+     *
+     * @return	the new file, or <tt>null</tt> if it could not be opened.
+     */
+    protected OpenFile duplicateFile(OpenFile of) {
+	if (of instanceof IORing)
+	    return null;
+
+	if (of instanceof Pipe)
+	    return ((Pipe) of).duplicate();
+
+	if (of.getFileSystem() == null)
+	    return UserKernel.console.duplicate(of);
+
+	OpenFile duplicate = ThreadedKernel.fileSystem.open(of.getName(), false);
+	if (duplicate != null)
+	    duplicate.seek(of.tell());
+
+	return duplicate;
+    }
+
     /**
      * Initialize the processor's registers in preparation for running the
      * program loaded into this process. Set the PC register to point at the
      * start function, set the stack pointer register to point at the top of
      * the stack, set the A0 and A1 registers to argc and argv, respectively,
-     * and initialize all other registers to 0.
+     * and initialize all other registers to 0. A process created by
+     * <tt>fork()</tt> instead starts with its parent's registers.
      */
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	if (forkRegisters != null) {
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		processor.writeRegister(i, forkRegisters[i]);
+	    forkRegisters = null;
+	    return;
+	}
+
 	// by default, everything's 0
 	for (int i=0; i<processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
@@ -435,25 +584,37 @@ public class UserProcess {
 	if (processID != 0)
 	    return -1;
 
-	Machine.halt();
+	// go through the kernel so it can clean up and print statistics
+	Kernel.kernel.terminate();
 	
 	Lib.assertNotReached("Machine.halt() did not halt machine!");
 	return 0;
     }
 
     protected int handleExit(int status) {
+	// asynchronous I/O in flight may still use the other files
+	for (int i=0; i<maxFiles; i++) {
+	    if (fileTable[i] instanceof IORing)
+		handleClose(i);
+	}
+
 	for (int i=0; i<maxFiles; i++)
 	    handleClose(i);
 
 	// idiot
 	UserKernel.lock.acquire();
 
+	while (!attachments.isEmpty())
+	    detachSegment(attachments.getFirst());
+	SharedMemory.processExited(this);
+
 	unloadSections();
 
 	// micah is an idiot
 	UserKernel.lock.release();
 
-	coff.close();
+	if (executable != null)
+	    executable.release();
 	
 	UserKernel.processLock.acquire();
 
@@ -513,6 +674,57 @@ public class UserProcess {
 	return result;
     }
 
+    /**
+     * Handle the fork() system call. The child shares this process's memory
+     * copy-on-write, gets its own copy of each open file, and starts running
+     * just after the system call, with a return value of 0.
+     */
+    private int handleFork() {
+	// the child returns 0 from the syscall, so it starts at the next
+	// instruction; read the registers before anything here can block
+	Processor processor = Machine.processor();
+	int[] registers = new int[Processor.numUserRegisters];
+	for (int i=0; i<registers.length; i++)
+	    registers[i] = processor.readRegister(i);
+
+	registers[Processor.regV0] = 0;
+	registers[Processor.regPC] = registers[Processor.regNextPC];
+	registers[Processor.regNextPC] += 4;
+
+	UserProcess childProcess = newUserProcess();
+	childProcess.parentProcess = this;
+	childProcess.executableName = executableName;
+	childProcess.executable = executable;
+	childProcess.coff = coff;
+	executable.acquire();
+
+	if (!childProcess.forkAddressSpace(this)) {
+	    executable.release();
+	    return -1;
+	}
+
+	for (int i=0; i<maxFiles; i++) {
+	    childProcess.fileTable[i] = (fileTable[i] == null) ? null :
+		duplicateFile(fileTable[i]);
+	}
+
+	childProcess.restartableBegin = restartableBegin;
+	childProcess.restartableEnd = restartableEnd;
+
+	childProcess.forkRegisters = registers;
+
+	UserKernel.processLock.acquire();
+
+	UserKernel.numRunningProcesses++;
+	childProcesses.add(new Integer(childProcess.processID));
+	new UThread(childProcess).setName(KThread.currentThread().getName())
+	    .fork();
+
+	UserKernel.processLock.release();
+
+	return childProcess.processID;
+    }
+
     private int handleJoin(int childID, int vaddrStatus) {
 	Integer integerChildID = new Integer(childID);
 	Integer status;
@@ -547,26 +759,41 @@ public class UserProcess {
 	if (fileName == null)
 	    return -1;
 
-	int fileDescrmmmoor = -1;
+	if (create)
+	    Executable.invalidate(fileName);
+
+	OpenFile of = ThreadedKernel.fileSystem.open(fileName, create);
+	if (of == null)
+	    return -1;
 
+	// choose the descriptor only after opening the file, which blocks, so
+	// that opens from an I/O ring running at the same time get different
+	// ones
 	for (int i=0; i<maxFiles; i++) {
 	    if (fileTable[i] == null) {
-		fileDescrmmmoor = i;
-		break;
+		fileTable[i] = of;
+		return i;
 	    }
 	}
-	if (fileDescrmmmoor == -1)
+
+	of.close();
+	return -1;
+    }
+
+    private int handleRead(int fileDescrmmmoor, int vaddrBuffer, int length) {
+	if (fileDescrmmmoor<0 || fileDescrmmmoor>=maxFiles)
+	    return -1;
+	if (length<0)
 	    return -1;
 
-	OpenFile of = ThreadedKernel.fileSystem.open(fileName, create);
+	OpenFile of = fileTable[fileDescrmmmoor];
 	if (of == null)
 	    return -1;
 
-	fileTable[fileDescrmmmoor] = of;
-	return fileDescrmmmoor;
+	return transferFile(of, vaddrBuffer, length, true);
     }
 
-    private int handleRead(int fileDescrmmmoor, int vaddrBuffer, int length) {
+    private int handleWrite(int fileDescrmmmoor, int vaddrBuffer, int length) {
 	if (fileDescrmmmoor<0 || fileDescrmmmoor>=maxFiles)
 	    return -1;
 	if (length<0)
@@ -576,63 +803,223 @@ public class UserProcess {
 	if (of == null)
 	    return -1;
 
+	Executable.fileWritten(of);
+
+	return transferFile(of, vaddrBuffer, length, false);
+    }
+
+    /**
+     * Handle the readv() and writev() system calls. The file is looked up
+     * once for the whole call. Each buffer is read with
+     * <tt>transferFile()</tt>, stopping after a short read. The buffers of a
+     * small writev() are gathered and passed to the file in a single write,
+     * so a console sees one request; larger ones are written buffer by
+     * buffer.
+     */
+    private int handleVectorIO(int fileDescrmmmoor, int vaddrIov, int iovcnt,
+			       boolean read) {
+	if (fileDescrmmmoor<0 || fileDescrmmmoor>=maxFiles)
+	    return -1;
+	if (iovcnt<0 || iovcnt>maxIov)
+	    return -1;
+
+	OpenFile of = fileTable[fileDescrmmmoor];
+	if (of == null)
+	    return -1;
+
+	byte[] iov = new byte[iovcnt*iovecSize];
+	if (readVirtualMemory(vaddrIov, iov) != iov.length)
+	    return -1;
+
+	if (!read)
+	    Executable.fileWritten(of);
+
+	int totalLength = 0;
+	for (int i=0; i<iovcnt; i++) {
+	    int length = Lib.bytesToInt(iov, i*iovecSize + 4);
+	    if (length < 0 || totalLength + length < 0)
+		return -1;
+	    totalLength += length;
+	}
+
+	if (!read && totalLength <= maxGather) {
+	    byte[] gathered = new byte[totalLength];
+	    int amount = 0;
+	    for (int i=0; i<iovcnt; i++) {
+		int base = Lib.bytesToInt(iov, i*iovecSize);
+		int length = Lib.bytesToInt(iov, i*iovecSize + 4);
+		int actual = readVirtualMemory(base, gathered, amount, length);
+		if (actual < length && amount + actual == 0)
+		    return -1;
+
+		amount += actual;
+		if (actual < length)
+		    break;
+	    }
+	    return of.write(gathered, 0, amount);
+	}
+
 	int total = 0;
-	while (length > 0) {
-	    int transfer = Math.min(length, ioBufferSize);
+	for (int i=0; i<iovcnt; i++) {
+	    int base = Lib.bytesToInt(iov, i*iovecSize);
+	    int length = Lib.bytesToInt(iov, i*iovecSize + 4);
+
+	    int actual = transferFile(of, base, length, read);
+	    if (actual == -1)
+		return (total == 0) ? -1 : total;
 
-	    int actual = of.read(ioBuffer, 0, transfer);
-	    if (actual == -1) {
-		total = -1;
+	    total += actual;
+	    if (actual < length)
 		break;
+	}
+
+	return total;
+    }
+
+    /**
+     * Transfer data between an open file and this process's virtual memory,
+     * with the file reading or writing the physical pages directly. The
+     * buffer is split into runs of pages that are contiguous in physical
+     * memory, and each run is pinned and passed to the file in one call.
+     * Stops at the first page that cannot be pinned, or after a short
+     * transfer.
+     *
+     * @param	of	the file to read or write.
+     * @param	vaddr	the first byte of virtual memory to transfer.
+     * @param	length	the number of bytes to transfer.
+     * @param	read	<tt>true</tt> to read from the file into memory,
+     *			<tt>false</tt> to write memory to the file.
+     * @return	the number of bytes transferred, or -1 if the file failed
+     *		before any were.
+     */
+    private int transferFile(OpenFile of, int vaddr, int length,
+			     boolean read) {
+	if (of instanceof Pipe)
+	    return transferPipe((Pipe) of, vaddr, length, read);
+
+	byte[] memory = Machine.processor().getMemory();
+	int total = 0;
+
+	while (length > 0) {
+	    int firstVPN = Processor.pageFromAddress(vaddr);
+	    int firstPPN = pinVirtualPage(firstVPN, read);
+	    if (firstPPN == -1)
+		break;
+
+	    int offset = Processor.offsetFromAddress(vaddr);
+	    int runLength = Math.min(length, pageSize - offset);
+	    int lastVPN = firstVPN;
+
+	    // extend the run while the next page follows in physical memory
+	    while (runLength < length) {
+		int ppn = pinVirtualPage(lastVPN+1, read);
+		if (ppn != firstPPN + (lastVPN+1 - firstVPN)) {
+		    if (ppn != -1)
+			unpinVirtualPage(lastVPN+1);
+		    break;
+		}
+
+		lastVPN++;
+		runLength += Math.min(length - runLength, pageSize);
 	    }
 
-	    actual = writeVirtualMemory(vaddrBuffer, ioBuffer, 0, actual);
+	    int actual;
+	    if (read)
+		actual = of.read(memory, firstPPN*pageSize + offset, runLength);
+	    else
+		actual = of.write(memory, firstPPN*pageSize + offset, runLength);
 
-	    vaddrBuffer += actual;
+	    for (int vpn=firstVPN; vpn<=lastVPN; vpn++)
+		unpinVirtualPage(vpn);
+
+	    if (actual == -1)
+		return (total == 0) ? -1 : total;
+
+	    vaddr += actual;
 	    length -= actual;
 	    total += actual;
 
-	    if (actual < transfer)
+	    if (actual < runLength)
 		break;
 	}
 
 	return total;
     }
 
-    private int handleWrite(int fileDescrmmmoor, int vaddrBuffer, int length) {
-	if (fileDescrmmmoor<0 || fileDescrmmmoor>=maxFiles)
-	    return -1;
-	if (length<0)
-	    return -1;
+    /**
+     * Transfer data between a pipe and this process's virtual memory through
+     * a kernel buffer. A pipe can wait indefinitely for a reader or a writer,
+     * so its data is not read into or written from pinned pages: with every
+     * frame pinned by waiting readers, the writer that would wake them could
+     * never get a frame for its own buffer. A read returns what one read of
+     * the pipe gives; a write is passed to the pipe a buffer at a time.
+     *
+     * @return	the number of bytes transferred, or -1 if the pipe failed
+     *		before any were.
+     */
+    private int transferPipe(Pipe pipe, int vaddr, int length, boolean read) {
+	byte[] buffer = new byte[Math.min(length, Pipe.capacity)];
 
-	OpenFile of = fileTable[fileDescrmmmoor];
-	if (of == null)
-	    return -1;
+	if (read) {
+	    // take no more from the pipe than fits in the pages that can be
+	    // written, so no data is lost to a bad buffer
+	    int writable = checkWritable(vaddr, buffer.length);
+	    if (writable == 0)
+		return 0;
 
-	int total = 0;
-	while (length > 0) {
-	    int transfer = Math.min(length, ioBufferSize);
+	    int amount = pipe.read(buffer, 0, writable);
+	    if (amount <= 0)
+		return amount;
 
-	    int actual = readVirtualMemory(vaddrBuffer, ioBuffer, 0, transfer);
+	    return writeVirtualMemory(vaddr, buffer, 0, amount);
+	}
 
-	    actual = of.write(ioBuffer, 0, actual);
-	    if (actual == -1) {
-		if (total == 0)
-		    total = -1;
+	int total = 0;
+	while (length > 0) {
+	    int amount = readVirtualMemory(vaddr, buffer, 0,
+					   Math.min(length, buffer.length));
+	    if (amount == 0)
 		break;
-	    }
 
-	    vaddrBuffer += actual;
+	    int actual = pipe.write(buffer, 0, amount);
+	    if (actual == -1)
+		return (total == 0) ? -1 : total;
+
+	    vaddr += actual;
 	    length -= actual;
 	    total += actual;
 
-	    if (actual < transfer)
+	    if (actual < amount)
 		break;
 	}
 
 	return total;
     }
 
+    /**
+     * Find how much of a range of virtual memory the kernel can write on
+     * behalf of this process, bringing its pages into memory and giving them
+     * their own frames if necessary.
+     *
+     * @return	the number of bytes from <i>vaddr</i>, up to <i>length</i>,
+     *		before the first page that cannot be written.
+     */
+    private int checkWritable(int vaddr, int length) {
+	int amount = 0;
+
+	while (amount < length) {
+	    int vpn = Processor.pageFromAddress(vaddr + amount);
+	    if (pinVirtualPage(vpn, true) == -1)
+		break;
+	    unpinVirtualPage(vpn);
+
+	    int off = Processor.offsetFromAddress(vaddr + amount);
+	    amount += Math.min(length - amount, pageSize - off);
+	}
+
+	return amount;
+    }
+
     private int handleClose(int fileDescrmmmoor) {
 	if (fileDescrmmmoor<0 || fileDescrmmmoor>=maxFiles)
 	    return -1;
@@ -647,18 +1034,354 @@ public class UserProcess {
 	return 0;
     }
 
+    /**
+     * Handle the pipe() system call: create a pipe, and store the file
+     * descriptors of its read and write ends at <i>vaddrFds</i>.
+     */
+    private int handlePipe(int vaddrFds) {
+	int readFD = -1, writeFD = -1;
+
+	for (int i=0; i<maxFiles && writeFD == -1; i++) {
+	    if (fileTable[i] == null) {
+		if (readFD == -1)
+		    readFD = i;
+		else
+		    writeFD = i;
+	    }
+	}
+	if (writeFD == -1)
+	    return -1;
+
+	byte[] fds = new byte[8];
+	Lib.bytesFromInt(fds, 0, readFD);
+	Lib.bytesFromInt(fds, 4, writeFD);
+	if (writeVirtualMemory(vaddrFds, fds) != fds.length)
+	    return -1;
+
+	Pipe[] ends = Pipe.create();
+	fileTable[readFD] = ends[0];
+	fileTable[writeFD] = ends[1];
+
+	return 0;
+    }
+
+    /**
+     * Handle the ioring_setup() system call: make the memory at
+     * <i>vaddrRing</i> an empty I/O ring, and return a file descriptor for
+     * it.
+     */
+    private int handleIORingSetup(int vaddrRing) {
+	if (vaddrRing % 4 != 0)
+	    return -1;
+
+	byte[] empty = new byte[IORing.ringSize];
+	if (writeVirtualMemory(vaddrRing, empty) != empty.length)
+	    return -1;
+
+	IORing ring = new IORing(this, vaddrRing);
+
+	for (int i=0; i<maxFiles; i++) {
+	    if (fileTable[i] == null) {
+		fileTable[i] = ring;
+		return i;
+	    }
+	}
+
+	ring.close();
+	return -1;
+    }
+
+    private int handleIORingEnter(int fileDescrmmmoor, int minComplete) {
+	if (fileDescrmmmoor<0 || fileDescrmmmoor>=maxFiles)
+	    return -1;
+	if (!(fileTable[fileDescrmmmoor] instanceof IORing))
+	    return -1;
+
+	return ((IORing) fileTable[fileDescrmmmoor]).enter(minComplete);
+    }
+
+    /**
+     * Handle the mmap() system call. Mapping files needs demand paging, so
+     * this process cannot do it; <tt>VMProcess</tt> overrides this.
+     */
+    protected int handleMmap(int fileDescrmmmoor, int vaddr) {
+	return -1;
+    }
+
+    /**
+     * Handle the munmap() system call.
+     */
+    protected int handleMunmap(int vaddr) {
+	return -1;
+    }
+
+    /**
+     * Handle the shmget() system call: return the ID of the shared memory
+     * segment with the specified key, first creating it with room for
+     * <i>size</i> bytes if there is none. Segments are never paged out, so
+     * together they may only use half of physical memory.
+     */
+    private int handleShmget(int key, int size) {
+	if (size < 0 || size > maxMappedAddress)
+	    return -1;
+
+	UserKernel.lock.acquire();
+
+	SharedMemory segment = SharedMemory.findByKey(key);
+	if (segment != null) {
+	    UserKernel.lock.release();
+	    return (size <= segment.getNumPages()*pageSize) ? segment.getID() : -1;
+	}
+
+	int numSegmentPages = (size + pageSize - 1) / pageSize;
+	if (numSegmentPages == 0 ||
+	    SharedMemory.getNumSegmentFrames() + numSegmentPages >
+	    Machine.processor().getNumPhysPages() / 2) {
+	    UserKernel.lock.release();
+	    return -1;
+	}
+
+	int[] frames = new int[numSegmentPages];
+	for (int i=0; i<frames.length; i++) {
+	    frames[i] = allocateFrame();
+	    if (frames[i] == -1) {
+		for (int j=0; j<i; j++)
+		    UserKernel.frameAllocator.free(frames[j]);
+		UserKernel.lock.release();
+		return -1;
+	    }
+	}
+
+	segment = SharedMemory.create(key, frames, this);
+
+	UserKernel.lock.release();
+	return segment.getID();
+    }
+
+    /**
+     * Handle the shmat() system call: map a shared memory segment at
+     * <i>vaddr</i>, which must be page-aligned and above the program.
+     */
+    private int handleShmat(int id, int vaddr) {
+	if (Processor.offsetFromAddress(vaddr) != 0
+	    || vaddr < numPages*pageSize || vaddr >= maxMappedAddress)
+	    return -1;
+
+	int firstVPN = Processor.pageFromAddress(vaddr);
+
+	UserKernel.lock.acquire();
+
+	SharedMemory segment = SharedMemory.findByID(id);
+	if (segment == null || segment.getNumPages() >
+	    Processor.pageFromAddress(maxMappedAddress) - firstVPN) {
+	    UserKernel.lock.release();
+	    return -1;
+	}
+
+	for (int i=0; i<segment.getNumPages(); i++) {
+	    if (isMappedVPN(firstVPN + i)) {
+		UserKernel.lock.release();
+		return -1;
+	    }
+	}
+
+	attachSegment(segment, firstVPN);
+
+	UserKernel.lock.release();
+	return segment.getNumPages()*pageSize;
+    }
+
+    /**
+     * Handle the shmdt() system call.
+     */
+    private int handleShmdt(int vaddr) {
+	UserKernel.lock.acquire();
+
+	Attachment attachment = null;
+	if (Processor.offsetFromAddress(vaddr) == 0)
+	    attachment = findAttachment(Processor.pageFromAddress(vaddr));
+
+	if (attachment == null ||
+	    attachment.firstVPN != Processor.pageFromAddress(vaddr)) {
+	    UserKernel.lock.release();
+	    return -1;
+	}
+
+	detachSegment(attachment);
+
+	UserKernel.lock.release();
+	return 0;
+    }
+
+    /**
+     * Map every page of a segment, starting at <i>firstVPN</i>. Called with
+     * <tt>UserKernel.lock</tt> held.
+     */
+    private void attachSegment(SharedMemory segment, int firstVPN) {
+	int length = firstVPN + segment.getNumPages();
+	if (length > pageTable.length)
+	    growPageTable(length);
+
+	for (int i=0; i<segment.getNumPages(); i++) {
+	    int vpn = firstVPN + i;
+	    int ppn = segment.getPPN(i);
+
+	    pageTable[vpn] = new TranslationEntry(vpn, ppn,
+						  true, false, false, false);
+	    UserKernel.sharePPN(ppn, vpn, this);
+	}
+
+	segment.attach();
+	attachments.add(new Attachment(segment, firstVPN));
+    }
+
+    /**
+     * Unmap a segment. Called with <tt>UserKernel.lock</tt> held.
+     */
+    private void detachSegment(Attachment attachment) {
+	for (int i=0; i<attachment.segment.getNumPages(); i++) {
+	    int vpn = attachment.firstVPN + i;
+
+	    invalidateVPN(vpn);
+	    UserKernel.unsharePPN(pageTable[vpn].ppn, this);
+	    pageTable[vpn] = new TranslationEntry(vpn, -1,
+						  false, false, false, false);
+	}
+
+	attachments.remove(attachment);
+	attachment.segment.detach();
+    }
+
+    /**
+     * Attach the segments <i>parent</i> has attached, at the same addresses,
+     * for <tt>fork()</tt>. Unlike the rest of memory they stay shared.
+     * Called with <tt>UserKernel.lock</tt> held.
+     */
+    protected void inheritSegments(UserProcess parent) {
+	for (Attachment attachment : parent.attachments)
+	    attachSegment(attachment.segment, attachment.firstVPN);
+    }
+
+    private Attachment findAttachment(int vpn) {
+	for (Attachment attachment : attachments) {
+	    if (vpn >= attachment.firstVPN &&
+		vpn < attachment.firstVPN + attachment.segment.getNumPages())
+		return attachment;
+	}
+	return null;
+    }
+
+    /**
+     * Test if a page above the program is in use by a shared memory segment
+     * or, in subclasses, anything else mapped there.
+     */
+    protected boolean isMappedVPN(int vpn) {
+	return findAttachment(vpn) != null;
+    }
+
+    /**
+     * Make the page table longer, to map something above the program. The
+     * new pages are invalid. Called with <tt>UserKernel.lock</tt> held.
+     */
+    protected void growPageTable(int length) {
+	int oldLength = pageTable.length;
+
+	pageTable = Arrays.copyOf(pageTable, length);
+	copyOnWrite = Arrays.copyOf(copyOnWrite, length);
+
+	for (int vpn=oldLength; vpn<length; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, -1,
+						  false, false, false, false);
+
+	// the processor must be given the new table
+	if (UserKernel.currentProcess() == this)
+	    restoreState();
+    }
+
+    /**
+     * Take a free frame. Called with <tt>UserKernel.lock</tt> held.
+     *
+     * @return	the physical page number, or -1 if memory is full.
+     */
+    protected int allocateFrame() {
+	if (UserKernel.frameAllocator.getNumFree() == 0)
+	    Executable.reclaimFrames();
+
+	return UserKernel.frameAllocator.allocate();
+    }
+
     private int handleUnlink(int vaddrFileName) {
 	String fileName = readVirtualMemoryString(vaddrFileName, 256);
 	if (fileName == null)
 	    return -1;
 
+	Executable.invalidate(fileName);
+
 	if (!ThreadedKernel.fileSystem.remove(fileName))
 	    return -1;
 
 	return 0;
     }    
 
-    private static final int
+    /**
+     * Handle the futex_wait() system call. 
+     */
+    private int handleFutexWait(int vaddr, int expected) {
+	if (vaddr % 4 != 0)
+	    return -1;
+
+	int vpn = Processor.pageFromAddress(vaddr);
+	int ppn = pinVirtualPage(vpn, false);
+	if (ppn == -1)
+	    return -1;
+
+	// the page stays pinned while we wait, so its physical address keeps
+	// naming the same word until we are woken
+	boolean slept = Futex.sleep(ppn*pageSize +
+				    Processor.offsetFromAddress(vaddr),
+				    expected);
+
+	unpinVirtualPage(vpn);
+
+	return slept ? 0 : -1;
+    }
+
+    /**
+     * Handle the futex_wake() system call. 
+     */
+    private int handleFutexWake(int vaddr, int count) {
+	if (vaddr % 4 != 0 || count < 0)
+	    return -1;
+
+	int vpn = Processor.pageFromAddress(vaddr);
+	int ppn = pinVirtualPage(vpn, false);
+	if (ppn == -1)
+	    return -1;
+
+	int woken = Futex.wake(ppn*pageSize +
+			       Processor.offsetFromAddress(vaddr), count);
+
+	unpinVirtualPage(vpn);
+
+	return woken;
+    }
+
+    /**
+     * Handle the restartable() system call. 
+     */
+    private int handleRestartable(int vaddrBegin, int vaddrEnd) {
+	if (vaddrBegin % 4 != 0 || vaddrEnd % 4 != 0 ||
+	    vaddrEnd <= vaddrBegin ||
+	    vaddrEnd - vaddrBegin > maxRestartableLength)
+	    return -1;
+
+	restartableBegin = vaddrBegin;
+	restartableEnd = vaddrEnd;
+	
+	return 0;
+    }
+
+    static final int
         syscallHalt = 0,
 	syscallExit = 1,
 	syscallExec = 2,
@@ -668,7 +1391,21 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallMmap = 10,
+	syscallFutexWait = 13,
+	syscallFutexWake = 14,
+	syscallRestartable = 15,
+	syscallReadv = 16,
+	syscallWritev = 17,
+	syscallMunmap = 18,
+	syscallFork = 19,
+	syscallShmget = 20,
+	syscallShmat = 21,
+	syscallShmdt = 22,
+	syscallPipe = 23,
+	syscallIORingSetup = 24,
+	syscallIORingEnter = 25;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -689,6 +1426,27 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  futex_wait(int *addr, int expected);
+     *								</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  futex_wake(int *addr, int count);
+     *								</tt></td></tr>
+     * <tr><td>15</td><td><tt>int  restartable(void *begin, void *end);
+     *								</tt></td></tr>
+     * <tr><td>16</td><td><tt>int  readv(int fd, struct iovec *iov,
+     *				     int iovcnt);</tt></td></tr>
+     * <tr><td>17</td><td><tt>int  writev(int fd, struct iovec *iov,
+     *				      int iovcnt);</tt></td></tr>
+     * <tr><td>18</td><td><tt>int  munmap(char *address);</tt></td></tr>
+     * <tr><td>19</td><td><tt>int  fork();</tt></td></tr>
+     * <tr><td>20</td><td><tt>int  shmget(int key, int size);</tt></td></tr>
+     * <tr><td>21</td><td><tt>int  shmat(int shmid, char *address);</tt></td></tr>
+     * <tr><td>22</td><td><tt>int  shmdt(char *address);</tt></td></tr>
+     * <tr><td>23</td><td><tt>int  pipe(int *fds);</tt></td></tr>
+     * <tr><td>24</td><td><tt>int  ioring_setup(struct io_ring *ring);
+     *								</tt></td></tr>
+     * <tr><td>25</td><td><tt>int  ioring_enter(int fd, int minComplete);
+     *								</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -721,6 +1479,12 @@ public class UserProcess {
 	case syscallUnlink:
 	    return handleUnlink(a0);
 
+	case syscallMmap:
+	    return handleMmap(a0, a1);
+
+	case syscallMunmap:
+	    return handleMunmap(a0);
+
 	case syscallExit:
 	    return handleExit(a0);
 
@@ -730,6 +1494,42 @@ public class UserProcess {
 	case syscallJoin:
 	    return handleJoin(a0, a1);
 
+	case syscallFork:
+	    return handleFork();
+
+	case syscallShmget:
+	    return handleShmget(a0, a1);
+
+	case syscallShmat:
+	    return handleShmat(a0, a1);
+
+	case syscallShmdt:
+	    return handleShmdt(a0);
+
+	case syscallPipe:
+	    return handlePipe(a0);
+
+	case syscallIORingSetup:
+	    return handleIORingSetup(a0);
+
+	case syscallIORingEnter:
+	    return handleIORingEnter(a0, a1);
+
+	case syscallFutexWait:
+	    return handleFutexWait(a0, a1);
+
+	case syscallFutexWake:
+	    return handleFutexWake(a0, a1);
+
+	case syscallRestartable:
+	    return handleRestartable(a0, a1);
+
+	case syscallReadv:
+	    return handleVectorIO(a0, a1, a2, true);
+
+	case syscallWritev:
+	    return handleVectorIO(a0, a1, a2, false);
+
 	default:
 	    handleExit(1);
 	    Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -760,45 +1560,94 @@ public class UserProcess {
 	    processor.writeRegister(Processor.regV0, result);
 	    processor.advancePC();
 	    break;				       
+
+	case Processor.exceptionReadOnly:
+	    int vpn = Processor.pageFromAddress(
+		processor.readRegister(Processor.regBadVAddr));
+	    // a real write to a read-only page
+	    if (!handleCopyOnWrite(vpn))
+		handleUnexpectedException(cause);
+	    break;
 				       
 	default:
-	    System.out.println("Unexpected exception: " +
-		      Processor.exceptionNames[cause]);
-	    Lib.debug(dbgProcess, "Unexpected exception: " +
-		      Processor.exceptionNames[cause]);
-	    abnormalTermination = true;
-	    handleExit(0);
-	    Lib.assertNotReached("Unexpected exception");
+	    handleUnexpectedException(cause);
 	}
     }
 
+    /**
+     * Terminate this process abnormally because of an exception it cannot
+     * recover from. Never returns.
+     */
+    private void handleUnexpectedException(int cause) {
+	System.out.println("Unexpected exception: " +
+		  Processor.exceptionNames[cause]);
+	Lib.debug(dbgProcess, "Unexpected exception: " +
+		  Processor.exceptionNames[cause]);
+	abnormalTermination = true;
+	handleExit(0);
+	Lib.assertNotReached("Unexpected exception");
+    }
+
     /** The program being run by this process. */
     protected Coff coff;
+    /** The cached executable <tt>coff</tt> belongs to. */
+    protected Executable executable;
+    /** The name of the file <tt>coff</tt> was loaded from. */
+    protected String executableName;
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
+    /** Which pages are shared read-only with another process by fork(). */
+    protected boolean[] copyOnWrite;
 
     /** The number of pages in the program's stack. */
     protected final int stackPages = 8;
     
     private int initialPC, initialSP;
     private int argc, argv;
+    /** The registers a process created by fork() starts with. */
+    private int[] forkRegisters = null;
+
+    /** A shared memory segment mapped into this process. */
+    private static class Attachment {
+	Attachment(SharedMemory segment, int firstVPN) {
+	    this.segment = segment;
+	    this.firstVPN = firstVPN;
+	}
+
+	SharedMemory segment;
+
+	int firstVPN;
+    }
+
+    private LinkedList<Attachment> attachments = new LinkedList<Attachment>();
+
+    /** Anything mapped above the program must end below this address. */
+    protected static final int maxMappedAddress = 0x04000000;
     
     private UserProcess parentProcess = null;
     private int processID;
     
-    private HashSet childProcesses = new HashSet();
+    private HashSet<Integer> childProcesses = new HashSet<Integer>();
     private HashMap exitStatusTable = new HashMap();
     private Condition childFinished = new Condition(UserKernel.processLock);
     private boolean abnormalTermination = false;
-    
-    private byte[] ioBuffer = new byte[ioBufferSize];
-    private static final int ioBufferSize = 1024;
+
+    /** The restartable sequence, or an empty range if none is registered. */
+    private int restartableBegin = 0, restartableEnd = 0;
+    private static final int maxRestartableLength = 64;
     
     protected OpenFile[] fileTable = new OpenFile[maxFiles];
     protected static final int maxFiles = 16;
+
+    /** The most buffers in one readv() or writev() call. */
+    private static final int maxIov = 16;
+    /** The size of a <tt>struct iovec</tt> in user memory. */
+    private static final int iovecSize = 8;
+    /** The largest writev() whose buffers are gathered into one write. */
+    private static final int maxGather = 4096;
 	
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
@@ -15,11 +15,14 @@ public class VMKernel extends UserKernel {
     private static VMProcess dummy1 = null;
     private static final char dbgVM = 'v';
     private static LinkedList freeSwapPages = new LinkedList();
+    private static int numSwapPages = 0;
+    private static int clockHand = 0;
     public static OpenFile swapFile;
     private static final int pageSize = Processor.pageSize;
 
     /* OUR THINGS */
     private static Condition unpinnedPage;
+    private static int numWaitingForUnpin = 0;
     private static Iterator i;
 
     /**
@@ -63,72 +66,141 @@ public class VMKernel extends UserKernel {
     public static int replacementAlgorithm() {
 
         int victimPPN = findVictim();
-        ProcessHelper victim = mmmo.get(victimPPN);
-        VMProcess p = (VMProcess)victim.process;
 
-        if (p.getDirty(victim.vpn) && !p.readOnlyVPN(victim.vpn)) {
-            handleSwap(victimPPN);
+        // a frame shared after fork() is evicted from every page that maps
+        // it. Every mapping is invalidated before any is written, since the
+        // writes block and a sharer could otherwise put the page back in its
+        // TLB, or pin it, meanwhile. Invalidating keeps the TLB's dirty bit.
+        for (int m = frameTable.firstMapping(victimPPN); m != -1; m = frameTable.nextMapping(m)) {
+            VMProcess p = (VMProcess)frameTable.getProcess(m);
+            int vpn = frameTable.getVPN(m);
+
+            p.invalidateVPN(vpn);
+        }
+
+        for (int m = frameTable.firstMapping(victimPPN); m != -1; m = frameTable.nextMapping(m)) {
+            VMProcess p = (VMProcess)frameTable.getProcess(m);
+            int vpn = frameTable.getVPN(m);
+
+            if (p.getDirty(vpn) && !p.readOnlyVPN(vpn)) {
+                if (!p.writeBackMapped(vpn))
+                    handleSwap(p, vpn, victimPPN);
+            }
         }
 
-        p.invalidateVPN(victim.vpn);
         UserKernel.removePPN(victimPPN);
+        Executable.frameEvicted(victimPPN);
         return victimPPN;
     }
 
     private static int findVictim() {
 
+        int numPhysPages = Machine.processor().getNumPhysPages();
         int ppn;
         for (ppn = -1; ppn < 0; ) {
-            for(int j = 0; j < mmmo.size(); j++){
-                ProcessHelper jPData = mmmo.get(new Integer(j));
-                VMProcess p = (VMProcess)jPData.process;
-                int vpn = jPData.vpn;
-
-                if (!p.evictableVPN(vpn)) {
-                    p.vpnNotRecentlyUsed(vpn);
-                } else {
-                    ppn = p.getPPN(vpn);
-                    j = mmmo.size(); // basically first loop again
+            boolean allPinned = true;
+            // a clock: carry on from the last victim, and go round twice
+            // because the first time may only clear referenced bits
+            for(int k = 0; k < 2 * numPhysPages; k++){
+                int j = clockHand;
+                clockHand = (clockHand + 1) % numPhysPages;
+
+                // shared memory segments stay resident
+                if (frameTable.getNumMappings(j) == 0 || SharedMemory.isSegmentFrame(j)) { continue; }
+
+                if (frameTable.isPinned(j)) { continue; }
+                allPinned = false;
+
+                if (!frameTable.clearReferenced(j)) {
+                    ppn = j;
+                    break;
                 }
             }
-            if (ppn < 0){ unpinnedPage.sleep(); }
+            if (ppn < 0 && allPinned) {
+                numWaitingForUnpin++;
+                unpinnedPage.sleep();
+                numWaitingForUnpin--;
+            }
         }
         return ppn;
     }
 
-    private static int determineSwapPage(int victimPPN) {
+    /**
+     * Called when a frame is no longer pinned, to wake the threads waiting
+     * in <tt>findVictim()</tt> for a frame they can evict.
+     */
+    public static void frameUnpinned() {
+        if (numWaitingForUnpin == 0)
+            return;
+
+        boolean held = UserKernel.lock.isHeldByCurrentThread();
+        if (!held)
+            UserKernel.lock.acquire();
+
+        unpinnedPage.wakeAll();
+
+        if (!held)
+            UserKernel.lock.release();
+    }
+
+    /**
+     * Return the swap page of a process's page, giving it one, from those
+     * freed by processes that exited or from the end of the swap file, if
+     * it has none yet.
+     */
+    private static int determineSwapPage(UserProcess process, int vpn) {
 
-        int res;
-        ProcessHelper victim = mmmo.get(victimPPN);
-        VMProcess p = (VMProcess)victim.process;
+        int res = getParticularSwapPage(process, vpn);
 
-        if (!(getParticularSwapPage(p, victim.vpn) != -1 && freeSwapPages.size() > 0)) {
-            res = swapFile.length() / pageSize + 1;
-            freeSwapPages.add(new Integer(res));
-        } else if (getParticularSwapPage(p, victim.vpn) != -1) {
-            res = getParticularSwapPage(p, victim.vpn);
-        } else {
-            res = ((Integer)freeSwapPages.removeFirst()).intValue();
+        if (res == -1) {
+            if (freeSwapPages.size() > 0) {
+                res = ((Integer)freeSwapPages.removeFirst()).intValue();
+            } else {
+                res = numSwapPages++;
+            }
+            swapper.put(new ProcessHelper(process, vpn), new Integer(res));
         }
 
         return res;
     }
 
     /* give focus for grade*/
-    private static void handleSwap(int victimPPN) {
+    private static void handleSwap(UserProcess process, int vpn, int victimPPN) {
 
-        ProcessHelper victim = mmmo.get(victimPPN);
-        VMProcess p = (VMProcess)victim.process;
-        byte[] data = new byte[pageSize];
-        int page = determineSwapPage(victimPPN);
-        int size = page * pageSize;
+        int page = determineSwapPage(process, vpn);
+
+        swapFile.write(page * pageSize, Machine.processor().getMemory(), victimPPN * pageSize, pageSize);
+    }
+
+    /**
+     * Give a child created by <tt>fork()</tt> its own copy of a page its
+     * parent has in swap.
+     */
+    public static void copySwapPage(UserProcess parent, UserProcess child, int vpn) {
 
-        if (getParticularSwapPage(p, victim.vpn) == -1) {
-            swapper.put(victim, new Integer(victimPPN));
+        int from = getParticularSwapPage(parent, vpn);
+        if (from == -1) {
+            return;
         }
 
-        System.arraycopy(Machine.processor().getMemory(), victimPPN * pageSize, data, 0, pageSize);
-        swapFile.write(size, data, 0, pageSize);
+        byte[] data = new byte[pageSize];
+        swapFile.read(from * pageSize, data, 0, pageSize);
+        swapFile.write(determineSwapPage(child, vpn) * pageSize, data, 0, pageSize);
+    }
+
+    /**
+     * Release the swap pages of a process that is exiting.
+     */
+    public static void freeSwapPages(UserProcess process) {
+
+        i = swapper.keySet().iterator();
+        while (i.hasNext()) {
+            ProcessHelper next = (ProcessHelper)i.next();
+            if (next.process == process) {
+                freeSwapPages.add(swapper.get(next));
+                i.remove();
+            }
+        }
     }
 
     public static int getParticularSwapPage(UserProcess process, int target) {
@@ -5,6 +5,9 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+import java.util.LinkedList;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -15,10 +18,6 @@ public class VMProcess extends UserProcess {
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
 
-    /* OURS */
-    public boolean[] pinned;
-    public boolean[] lRU;
-
 	/**
 	 * Allocate a new VM kernel.
 	 */
@@ -34,35 +33,64 @@ public class VMProcess extends UserProcess {
 
 		for (int i = 0; i < Machine.processor().getTLBSize(); i++) {
 		 	TranslationEntry curEntry = Machine.processor().readTLBEntry(i);
-		    pageTable[curEntry.vpn].dirty = curEntry.dirty;
-		    pageTable[curEntry.vpn].used = curEntry.used;
+		 	if (curEntry.valid) {
+			    pageTable[curEntry.vpn].dirty |= curEntry.dirty;
+			    pageTable[curEntry.vpn].used |= curEntry.used;
+		 	}
 		    curEntry.valid = false;
 		    Machine.processor().writeTLBEntry(i, curEntry);
 		}
     }
 
+    /**
+     * Pin a page for the kernel, first bringing it into memory if it is part
+     * of the address space but not resident, as mapped file pages usually
+     * are when passed to <tt>read()</tt> or <tt>write()</tt>.
+     */
     protected int pinVirtualPage(int vpn, boolean userWrite) {
 
 		if (vpn < 0 || vpn >= pageTable.length) { return -1; }
 
+		// the page is pinned before the lock is released, since releasing
+		// it can switch to another process that would evict the page
+		boolean held = UserKernel.lock.isHeldByCurrentThread();
+		if (!held)
+		    UserKernel.lock.acquire();
+
+		if (!pageTable[vpn].valid && inAddressSpace(vpn))
+		    handleFault(vpn);
+
+		if (userWrite && copyOnWrite[vpn])
+		    copyPageOnWrite(vpn);
+
 		TranslationEntry entry = pageTable[vpn];
+		int ppn = -1;
 
-		if (!entry.valid || entry.vpn != vpn || (userWrite && entry.readOnly)) {
-			return -1;
-		} else if (userWrite) {
-		    entry.dirty = true;
-			return entry.ppn;
-	    } else {
-			pinned[vpn] = true;
-			entry.used = true;
-			lRU[vpn] = true;
-			return entry.ppn;
-	    }
+		if (entry.valid && entry.vpn == vpn && !(userWrite && entry.readOnly)) {
+		    if (userWrite) {
+			entry.dirty = true;
+		    }
+
+		    // pages the kernel writes into must stay put as much as pages
+		    // it reads
+		    UserKernel.frameTable.pin(entry.ppn);
+		    UserKernel.frameTable.setReferenced(entry.ppn);
+		    entry.used = true;
+		    ppn = entry.ppn;
+		}
+
+		if (!held)
+		    UserKernel.lock.release();
+
+		return ppn;
     }
 	    
     protected void unpinVirtualPage(int vpn) {
-    	/* it's so easy when you read the instructions */
-		pinned[vpn] = false;
+		if (vpn < 0 || vpn >= pageTable.length || !pageTable[vpn].valid) { return; }
+
+		if (UserKernel.frameTable.unpin(pageTable[vpn].ppn)) {
+		    VMKernel.frameUnpinned();
+		}
     }
 
     /**
@@ -85,12 +113,9 @@ public class VMProcess extends UserProcess {
 		pageTable = new TranslationEntry[numPages];
 
 		int i = 0;
-        pinned = new boolean[numPages];
-        lRU = new boolean[numPages];
+        copyOnWrite = new boolean[numPages];
 		while (i < numPages) {
 		    pageTable[i] = new TranslationEntry(i, -1, false, false, false, false);
-            pinned[i] = false;
-            lRU[i] = false;
             i++;
 		}
 
@@ -101,78 +126,395 @@ public class VMProcess extends UserProcess {
 
     protected void unloadSections() {
 
+    	while (!mappings.isEmpty())
+    	    unmap(mappings.getFirst());
+
     	/* should be done */
         for (int i = 0; i < pageTable.length; i++) {
 		    if (pageTable[i] != null) {
-		    	if (pageTable[i].valid) {
-			        UserKernel.freePages.add(new Integer(pageTable[i].ppn));
+		    	if (pageTable[i].valid && UserKernel.unsharePPN(pageTable[i].ppn, this)
+		    	    && !Executable.isTextFrame(pageTable[i].ppn)) {
+			        UserKernel.frameAllocator.free(pageTable[i].ppn);
 		    	}
 		    }
 		}
+
+		VMKernel.freeSwapPages(this);
     }
 
-    public boolean evictableVPN(int vpn){
-    	return !pinned[vpn] && !lRU[vpn];
+    /**
+     * Share the parent's resident frames copy-on-write, and copy the pages it
+     * has in swap. A shared page that is evicted is written to the swap of
+     * every process that maps it, so each one can fault it back in alone.
+     * Maps made with <tt>mmap()</tt> are not inherited; shared memory
+     * segments are.
+     */
+    protected boolean forkAddressSpace(UserProcess parentProcess) {
+		VMProcess parent = (VMProcess)parentProcess;
+
+		UserKernel.lock.acquire();
+
+		// the parent is running, so make sure its page table has the TLB's
+		// dirty bits and that it sees the pages become read-only
+		parent.saveState();
+
+		numPages = parent.numPages;
+		pageTable = new TranslationEntry[numPages];
+		copyOnWrite = new boolean[numPages];
+
+		for (int vpn = 0; vpn < numPages; vpn++) {
+		    TranslationEntry entry = parent.pageTable[vpn];
+
+		    if (!entry.valid) {
+			pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+			VMKernel.copySwapPage(parent, this, vpn);
+			continue;
+		    }
+
+		    boolean writable = !entry.readOnly || parent.copyOnWrite[vpn];
+		    if (writable) {
+			entry.readOnly = true;
+			parent.copyOnWrite[vpn] = true;
+			copyOnWrite[vpn] = true;
+		    }
+
+		    // a clean page whose contents are in the parent's swap must still
+		    // be written to the child's swap if it is evicted
+		    boolean dirty = writable && (entry.dirty
+			|| VMKernel.getParticularSwapPage(parent, vpn) != -1);
+
+		    pageTable[vpn] = new TranslationEntry(vpn, entry.ppn, true, true, false, dirty);
+		    UserKernel.sharePPN(entry.ppn, vpn, this);
+		}
+
+		inheritSegments(parent);
+
+		UserKernel.lock.release();
+
+		return true;
+    }
+
+    /**
+     * Give a copy-on-write page its own frame. Choosing the frame may evict
+     * the shared one; then the page is faulted back in from this process's
+     * own swap instead.
+     */
+    protected boolean handleCopyOnWrite(int vpn) {
+		if (vpn < 0 || vpn >= pageTable.length) { return false; }
+
+		UserKernel.lock.acquire();
+		boolean copied = copyPageOnWrite(vpn);
+		UserKernel.lock.release();
+
+		return copied;
+    }
+
+    /**
+     * The body of <tt>handleCopyOnWrite()</tt>, for callers that already
+     * hold <tt>UserKernel.lock</tt>.
+     */
+    private boolean copyPageOnWrite(int vpn) {
+		if (!copyOnWrite[vpn]) {
+		    return false;
+		}
+
+		if (pageTable[vpn].valid) {
+		    syncTLBEntry(vpn, true);
+
+		    if (UserKernel.getPPNRefs(pageTable[vpn].ppn) > 1) {
+			int ppn = determineEviction();
+
+			if (pageTable[vpn].valid) {
+			    int oldPPN = pageTable[vpn].ppn;
+			    byte[] memory = Machine.processor().getMemory();
+			    System.arraycopy(memory, oldPPN * pageSize, memory, ppn * pageSize, pageSize);
+
+			    UserKernel.unsharePPN(oldPPN, this);
+			    VMKernel.addPPN(ppn, vpn, (UserProcess)this);
+			    pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, true, true);
+			} else {
+			    UserKernel.frameAllocator.free(ppn);
+			}
+		    } else {
+			pageTable[vpn].readOnly = false;
+			pageTable[vpn].dirty = true;
+		    }
+		}
+
+		// an evicted page comes back private, and writable, on its next fault
+		copyOnWrite[vpn] = false;
+
+		return true;
+    }
+
+    public boolean readOnlyVPN(int vpn){
+		return pageTable[vpn].readOnly && !copyOnWrite[vpn];
     }
 
     public boolean getDirty(int vpn){
+		syncTLBEntry(vpn, false);
 		return pageTable[vpn].dirty;
     }
 
+    public void invalidateVPN(int vpn){
+		syncTLBEntry(vpn, true);
+		super.invalidateVPN(vpn);
+    }
+
+    /**
+     * If this process is running, copy the TLB's dirty and used bits for a
+     * page into its page table entry, and optionally drop the TLB entry so
+     * the page can be given to someone else.
+     */
+    private void syncTLBEntry(int vpn, boolean invalidate) {
+		if (UserKernel.currentProcess() != this)
+		    return;
+
+		Processor processor = Machine.processor();
+		for (int i = 0; i < processor.getTLBSize(); i++) {
+		    TranslationEntry entry = processor.readTLBEntry(i);
+		    if (entry.valid && entry.vpn == vpn) {
+			pageTable[vpn].dirty |= entry.dirty;
+			pageTable[vpn].used |= entry.used;
+			if (invalidate) {
+			    entry.valid = false;
+			    processor.writeTLBEntry(i, entry);
+			}
+		    }
+		}
+    }
+
+    /**
+     * Write a page that is about to be evicted back to the file it maps.
+     * Mapped pages never go to swap.
+     *
+     * @return	<tt>true</tt> if the page belongs to a mapped file.
+     */
+    public boolean writeBackMapped(int vpn) {
+		MappedFile mapping = findMapping(vpn);
+		if (mapping == null)
+		    return false;
+
+		mapping.writePage(vpn, pageTable[vpn].ppn);
+		return true;
+    }
+
+    /**
+     * Return true if a page is part of the program or of something mapped
+     * above it.
+     */
+    private boolean inAddressSpace(int vpn) {
+		return vpn >= 0 && vpn < pageTable.length
+		    && (vpn < numPages || isMappedVPN(vpn));
+    }
+
+    protected boolean isMappedVPN(int vpn) {
+		return super.isMappedVPN(vpn) || findMapping(vpn) != null;
+    }
+
+    private MappedFile findMapping(int vpn) {
+		for (MappedFile mapping : mappings) {
+		    if (vpn >= mapping.firstVPN
+			&& vpn < mapping.firstVPN + mapping.numPages)
+			return mapping;
+		}
+		return null;
+    }
+
+    /**
+     * Map a file at <i>vaddr</i>. The file is opened again by name, so that
+     * the map does not depend on the file descriptor. No pages are read until
+     * they are touched.
+     */
+    protected int handleMmap(int fileDescrmmmoor, int vaddr) {
+		if (fileDescrmmmoor < 0 || fileDescrmmmoor >= maxFiles)
+		    return -1;
+		if (fileTable[fileDescrmmmoor] == null)
+		    return -1;
+		if (Processor.offsetFromAddress(vaddr) != 0
+		    || vaddr < numPages*pageSize || vaddr >= maxMappedAddress)
+		    return -1;
+
+		OpenFile file = ThreadedKernel.fileSystem.open(
+		    fileTable[fileDescrmmmoor].getName(), false);
+		if (file == null)
+		    return -1;
+
+		// the map may write the file back
+		Executable.fileWritten(file);
+
+		int length = file.length();
+		if (length <= 0 || length > maxMappedAddress - vaddr) {
+		    file.close();
+		    return (length == 0) ? 0 : -1;
+		}
+
+		int firstVPN = Processor.pageFromAddress(vaddr);
+		int lastVPN = Processor.pageFromAddress(vaddr + length - 1);
+
+		UserKernel.lock.acquire();
+
+		for (int vpn = firstVPN; vpn <= lastVPN; vpn++) {
+		    if (isMappedVPN(vpn)) {
+			UserKernel.lock.release();
+			file.close();
+			return -1;
+		    }
+		}
+
+		if (lastVPN >= pageTable.length)
+		    growPageTable(lastVPN + 1);
+
+		mappings.add(new MappedFile(file, firstVPN, lastVPN - firstVPN + 1,
+					    length));
+
+		UserKernel.lock.release();
+
+		return length;
+    }
+
+    protected int handleMunmap(int vaddr) {
+		UserKernel.lock.acquire();
+
+		MappedFile mapping = null;
+		if (Processor.offsetFromAddress(vaddr) == 0)
+		    mapping = findMapping(Processor.pageFromAddress(vaddr));
+
+		if (mapping == null
+		    || mapping.firstVPN != Processor.pageFromAddress(vaddr)) {
+		    UserKernel.lock.release();
+		    return -1;
+		}
+
+		unmap(mapping);
+
+		UserKernel.lock.release();
+		return 0;
+    }
+
+    /**
+     * Write back the dirty resident pages of a map, free its frames and
+     * close its file. Called with <tt>UserKernel.lock</tt> held.
+     */
+    private void unmap(MappedFile mapping) {
+		for (int i = 0; i < mapping.numPages; i++) {
+		    int vpn = mapping.firstVPN + i;
+		    TranslationEntry entry = pageTable[vpn];
+
+		    if (entry.valid) {
+			invalidateVPN(vpn);
+			if (entry.dirty)
+			    mapping.writePage(vpn, entry.ppn);
+
+			VMKernel.removePPN(entry.ppn);
+			UserKernel.frameAllocator.free(entry.ppn);
+		    }
+
+		    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+		}
+
+		mappings.remove(mapping);
+		mapping.file.close();
+    }
+
+    /**
+     * Take a free frame, evicting a page if there is none.
+     */
+    protected int allocateFrame() {
+		return determineEviction();
+    }
+
     public int getPPN(int vpn){
 		return pageTable[vpn].ppn;
     }
 
     private int determineEviction() {
+		// text no process maps is dropped before any page is evicted
+		if (VMKernel.frameAllocator.getNumFree() == 0) {
+		    Executable.reclaimFrames();
+		}
+
 		// no eviction; eviction
-		if (VMKernel.freePages.size() > 0) {
-		    return ((Integer)VMKernel.freePages.removeFirst()).intValue();
+		if (VMKernel.frameAllocator.getNumFree() > 0) {
+		    return VMKernel.frameAllocator.allocate();
 		} else {
 		    return VMKernel.replacementAlgorithm();
 		}
     }
 
-    private void handleCoff(CoffSection s, int vpn) {
-
-	    for (int i = 0; i < s.getLength(); i++) {
-			if (s.isReadOnly() && (s.getFirstVPN() + i) == vpn) {
-			    pageTable[vpn].readOnly = s.isReadOnly();
-			    s.loadPage(i, pinVirtualPage(vpn, false));
-			    unpinVirtualPage(vpn);
-			    return;
-			}
-	    }
-    }
-
-    public void vpnNotRecentlyUsed(int x){
-		lRU[x] = false;
-    }
-
     protected void handleFault(int vpn){
 
-    	int ppn = determineEviction();
-		pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false, false, false);
-		int numCoffSections = coff.getNumSections();
-		byte[] data;
+		// the text is shared with every process running the executable
+		if (executable.isText(vpn)) {
+		    int textPPN = executable.getTextFrame(this, vpn);
+		    pageTable[vpn] = new TranslationEntry(vpn, textPPN, true, true, false, false);
+		    copyOnWrite[vpn] = false;
+		    UserKernel.sharePPN(textPPN, vpn, this);
+		    UserKernel.frameTable.setReferenced(textPPN);
+		    return;
+		}
 
+    	int ppn = determineEviction();
+		// the entry stays invalid until the frame holds the page: the reads
+		// below block, and meanwhile the process's other threads can refill
+		// the TLB or pin pages without the lock
+		pageTable[vpn] = new TranslationEntry(vpn, ppn, false, false, false, false);
+		copyOnWrite[vpn] = false;
+		// a frame starts out referenced, since it is about to be used and
+		// must not be the next victim
 		VMKernel.addPPN(pageTable[vpn].ppn, vpn, (UserProcess)this);
 
-		for (int j = 0; j < numCoffSections; j++) {
-		    handleCoff(coff.getSection(j), vpn);
+		MappedFile mapping = findMapping(vpn);
+		if (mapping != null) {
+		    mapping.readPage(vpn, ppn);
+		} else {
+		    byte[] data;
+
+		    int particularSwapPage = VMKernel.getParticularSwapPage((UserProcess)this, vpn);
+		    if (particularSwapPage >= 0) {
+			data = new byte[pageSize];
+			VMKernel.swapFile.read(particularSwapPage * pageSize, data, 0, pageSize);
+			System.arraycopy(data, 0, Machine.processor().getMemory(), ppn * pageSize, pageSize);
+		    }
 		}
 
-		int particularSwapPage = VMKernel.getParticularSwapPage((UserProcess)this, vpn);
-        if (particularSwapPage >= 0) {
-		    data = new byte[pageSize];
-		    VMKernel.swapFile.read(particularSwapPage * pageSize, data, 0, pageSize);
-		    System.arraycopy(data, 0, Machine.processor().getMemory(), ppn * pageSize, pageSize);
-        }
+		pageTable[vpn].valid = true;
     }
 
     public void handleTLBMiss() {
 
     }
 
+    /**
+     * Put a resident page into a random TLB entry, keeping the dirty and used
+     * bits of the entry it replaces, or a mapped page might not be written
+     * back. This does not block, so the page cannot be evicted meanwhile.
+     *
+     * @return	<tt>false</tt> if the page is not resident.
+     */
+    private boolean refillTLB(int vpn) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (!inAddressSpace(vpn) || pageTable[vpn] == null || !pageTable[vpn].valid) {
+		    Machine.interrupt().restore(intStatus);
+		    return false;
+		}
+
+		UserKernel.frameTable.setReferenced(pageTable[vpn].ppn);
+
+		int slot = (int)(Machine.processor().getTLBSize() * Math.random());
+		TranslationEntry replaced = Machine.processor().readTLBEntry(slot);
+		if (replaced.valid) {
+		    pageTable[replaced.vpn].dirty |= replaced.dirty;
+		    pageTable[replaced.vpn].used |= replaced.used;
+		}
+
+		Machine.processor().writeTLBEntry(slot, pageTable[vpn]);
+
+		Machine.interrupt().restore(intStatus);
+		return true;
+    }
+
     /**
      * Handle a user exception. Called by
      * <tt>UserKernel.exceptionHandler()</tt>. The
@@ -190,15 +532,29 @@ public class VMProcess extends UserProcess {
 			    int vaddr = Machine.processor().readRegister(Processor.regBadVAddr);
 			    int vpn = Processor.pageFromAddress(vaddr);
 
+			    // a resident page is refilled without the lock: blocking on it
+			    // would switch threads and flush the TLB, and processes that
+			    // each need two pages for one instruction could then keep
+			    // taking each other's entries away forever
+			    if (refillTLB(vpn)) {
+					break;
+			    }
+
 			    UserKernel.lock.acquire();
 
+			    if (!inAddressSpace(vpn)) {
+					UserKernel.lock.release();
+					super.handleException(cause);
+					break;
+			    }
+
 			    if (pageTable[vpn] == null || !(pageTable[vpn].valid)) {
 					handleFault(vpn);
 			    }
 
 			    UserKernel.lock.release();
 
-			    Machine.processor().writeTLBEntry((int)(Machine.processor().getTLBSize() * Math.random()), pageTable[vpn]);
+			    refillTLB(vpn);
 
 	            break;
 			default:
@@ -206,4 +562,49 @@ public class VMProcess extends UserProcess {
 			    break;
 		}
     }
+
+    /** A file mapped into this process by <tt>mmap()</tt>. */
+    private static class MappedFile {
+		MappedFile(OpenFile file, int firstVPN, int numPages, int length) {
+		    this.file = file;
+		    this.firstVPN = firstVPN;
+		    this.numPages = numPages;
+		    this.length = length;
+		}
+
+		/**
+		 * Read a page of the file into a frame, zeroing what lies past the
+		 * end of the file.
+		 */
+		void readPage(int vpn, int ppn) {
+		    byte[] memory = Machine.processor().getMemory();
+		    int pos = (vpn - firstVPN) * pageSize;
+
+		    int amount = file.read(pos, memory, ppn*pageSize,
+					   Math.min(pageSize, length - pos));
+		    Arrays.fill(memory, ppn*pageSize + Math.max(amount, 0),
+				(ppn+1)*pageSize, (byte) 0);
+		}
+
+		/**
+		 * Write a frame back to its page of the file, without growing the
+		 * file.
+		 */
+		void writePage(int vpn, int ppn) {
+		    int pos = (vpn - firstVPN) * pageSize;
+
+		    file.write(pos, Machine.processor().getMemory(), ppn*pageSize,
+			       Math.min(pageSize, length - pos));
+		}
+
+		OpenFile file;
+
+		int firstVPN, numPages;
+
+		/** The length of the file when it was mapped. */
+		int length;
+    }
+
+    /** The files mapped into this process. */
+    private LinkedList<MappedFile> mappings = new LinkedList<MappedFile>();
 }